@@ -0,0 +1,913 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A Persistent Left Leaning RedBlack Tree stored as a struct of arrays.
+ *
+ * The same tree as {@link PersistentSet}, but rather than a {@code Node}
+ * object holding a list of {@code SetRecord} objects, a node is an index
+ * into parallel arrays, and its set records are consecutive rows of another
+ * set of parallel arrays. Children are {@code int} indices, and a record's
+ * revision is the {@code int} position of that revision among the root
+ * records, so walking the tree is index arithmetic over a handful of
+ * contiguous arrays rather than a chase through three objects per hop.
+ *
+ * Unlike {@link PersistentSet}, writing at a revision earlier than the latest
+ * one is rejected rather than assumed away.
+ *
+ * @author Robert Sedgewick
+ * @author Kevin Wayne
+ * @author Michael Davis
+ */
+
+public class ArrayPersistentSet<E, R> implements RevisionedSet<E, R> {
+
+  private static final int MAX_RECORD_CHANGES = 5;
+
+  // the null link
+  private static final int NIL = -1;
+
+  private final Comparator<? super E> elementComparator;
+  private final Comparator<? super R> revisionComparator;
+
+  // node n holds elements[n], and its set records are the rows
+  // n * MAX_RECORD_CHANGES up to n * MAX_RECORD_CHANGES + counts[n]
+  private Object[] elements = new Object[16];
+  private int[] counts = new int[16];
+  private int nodes = 0;
+
+  // set records; `sizes` holds the subtree size shifted left by one, with the
+  // low bit set if the node is red
+  private int[] revisions = new int[16 * MAX_RECORD_CHANGES];
+  private int[] lefts = new int[16 * MAX_RECORD_CHANGES];
+  private int[] rights = new int[16 * MAX_RECORD_CHANGES];
+  private int[] sizes = new int[16 * MAX_RECORD_CHANGES];
+
+  // root records: the tree at rootRevisions[v] is rooted at roots[v]
+  private Object[] rootRevisions = new Object[16];
+  private int[] roots = new int[16];
+  private int rootCount = 0;
+
+  private int size = 0;
+
+  // the top-down deletion restructures the tree before it knows whether the
+  // element is there at all, so its writes are journaled, four ints to a
+  // write, and rolled back when the element turns out to be absent
+  private int[] changes = new int[64];
+  private int changeCount = 0;
+  private boolean journaling = false;
+  private boolean removed;
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by their
+   * natural ordering.
+   *
+   * @throws ClassCastException on the first comparison if {@code E} or
+   *     {@code R} does not implement {@code java.lang.Comparable}
+   */
+  public ArrayPersistentSet() {
+    this(PersistentSet.NaturalOrder.INSTANCE, PersistentSet.NaturalOrder.INSTANCE);
+  }
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by the given
+   * comparators.
+   *
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @throws IllegalArgumentException if either comparator is {@code null}
+   */
+  public ArrayPersistentSet(Comparator<? super E> elementComparator,
+                            Comparator<? super R> revisionComparator) {
+    if (elementComparator == null || revisionComparator == null)
+      throw new IllegalArgumentException("comparator is null");
+
+    this.elementComparator = elementComparator;
+    this.revisionComparator = revisionComparator;
+  }
+
+  /***************************************************************************
+   *  Node helper methods.
+   ***************************************************************************/
+
+  @SuppressWarnings("unchecked")
+  private E element(int x) { return (E) elements[x]; }
+
+  @SuppressWarnings("unchecked")
+  private R revision(int v) { return (R) rootRevisions[v]; }
+
+  // the set record in force at revision `v`: the latest one made at or
+  // before it
+  private int findRevision(int x, int v) {
+    int first = x * MAX_RECORD_CHANGES;
+    int last = first + counts[x] - 1;
+
+    // reads and writes at the newest revision skip the binary search
+    if (v >= revisions[last]) return last;
+
+    int begin = first;
+    int end = last;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      if (revisions[mid] <= v)
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return Math.max(end, first);
+  }
+
+  private int lastRecord(int x) {
+    return x * MAX_RECORD_CHANGES + counts[x] - 1;
+  }
+
+  private int left(int x, int v) { return lefts[findRevision(x, v)]; }
+
+  private int right(int x, int v) { return rights[findRevision(x, v)]; }
+
+  private boolean isRed(int x, int v) {
+    return x == NIL ? false : (sizes[findRevision(x, v)] & 1) == 1;
+  }
+
+  // number of node in subtree rooted at x; 0 if x is NIL
+  private int size(int x, int v) {
+    return x == NIL ? 0 : sizes[findRevision(x, v)] >>> 1;
+  }
+
+  private int newNode(Object element) {
+    if (nodes == elements.length) {
+      int capacity = nodes * 2;
+      elements = Arrays.copyOf(elements, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      revisions = Arrays.copyOf(revisions, capacity * MAX_RECORD_CHANGES);
+      lefts = Arrays.copyOf(lefts, capacity * MAX_RECORD_CHANGES);
+      rights = Arrays.copyOf(rights, capacity * MAX_RECORD_CHANGES);
+      sizes = Arrays.copyOf(sizes, capacity * MAX_RECORD_CHANGES);
+    }
+
+    elements[nodes] = element;
+    counts[nodes] = 0;
+
+    return nodes++;
+  }
+
+  private int newNode(Object element, int v, boolean red) {
+    int x = newNode(element);
+    int record = x * MAX_RECORD_CHANGES;
+
+    counts[x] = 1;
+    revisions[record] = v;
+    lefts[record] = NIL;
+    rights[record] = NIL;
+    sizes[record] = 1 << 1 | (red ? 1 : 0);
+
+    return x;
+  }
+
+  private int setLeft(int x, int v, int left) {
+    int record = lastRecord(x);
+
+    return update(x, v, left, rights[record], (sizes[record] & 1) == 1);
+  }
+
+  private int setRight(int x, int v, int right) {
+    int record = lastRecord(x);
+
+    return update(x, v, lefts[record], right, (sizes[record] & 1) == 1);
+  }
+
+  private int setColor(int x, int v, boolean red) {
+    int record = lastRecord(x);
+
+    return update(x, v, lefts[record], rights[record], red);
+  }
+
+  // records the whole state of node x at revision `v`; returns the node
+  // holding the new record, which is a copy if x is full
+  private int update(int x, int v, int left, int right, boolean red) {
+    int size = size(left, v) + size(right, v) + 1;
+    int record = lastRecord(x);
+
+    if (revisions[record] == v) {
+      // replace the record already made at `v`
+      journal(record, lefts[record], rights[record], sizes[record]);
+    } else {
+      // if we've maxed out this node, allocate a new one
+      if (counts[x] >= MAX_RECORD_CHANGES) x = newNode(elements[x]);
+
+      record = x * MAX_RECORD_CHANGES + counts[x];
+      journal(-x - 1, 0, 0, 0);
+      counts[x]++;
+      revisions[record] = v;
+    }
+
+    lefts[record] = left;
+    rights[record] = right;
+    sizes[record] = size << 1 | (red ? 1 : 0);
+
+    return x;
+  }
+
+  // a record is negative for a record appended to node -record - 1
+  private void journal(int record, int left, int right, int size) {
+    if (!journaling) return;
+
+    if (changeCount + 4 > changes.length)
+      changes = Arrays.copyOf(changes, changes.length * 2);
+
+    changes[changeCount++] = record;
+    changes[changeCount++] = left;
+    changes[changeCount++] = right;
+    changes[changeCount++] = size;
+  }
+
+  // undo every journaled write, newest first, and free the nodes allocated
+  // since there were `allocated` of them
+  private void rollback(int allocated) {
+    while (changeCount > 0) {
+      int size = changes[--changeCount];
+      int right = changes[--changeCount];
+      int left = changes[--changeCount];
+      int record = changes[--changeCount];
+
+      if (record < 0) {
+        counts[-record - 1]--;
+      } else {
+        lefts[record] = left;
+        rights[record] = right;
+        sizes[record] = size;
+      }
+    }
+
+    for (int x = allocated; x < nodes; x++) elements[x] = null;
+
+    nodes = allocated;
+  }
+
+  /***************************************************************************
+   *  Root records.
+   ***************************************************************************/
+
+  // the position of the root record in force at `revision`, or -1 if there
+  // was no tree yet
+  private int readRevision(R revision) {
+    if (rootCount == 0) return -1;
+
+    // reads at the newest revision skip the binary search
+    if (revisionComparator.compare(revision, revision(rootCount - 1)) >= 0)
+      return rootCount - 1;
+
+    int begin = 0;
+    int end = rootCount - 1;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      if (revisionComparator.compare(revision, revision(mid)) >= 0)
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return end;
+  }
+
+  // the position the root record for a write at `revision` has, or will have
+  private int writeRevision(R revision) {
+    if (rootCount == 0) return 0;
+
+    int cmp = revisionComparator.compare(revision, revision(rootCount - 1));
+
+    if (cmp < 0)
+      throw new IllegalArgumentException("revision precedes the latest revision");
+
+    return cmp == 0 ? rootCount - 1 : rootCount;
+  }
+
+  private int findRoot(int v) { return v < 0 ? NIL : roots[v]; }
+
+  private int latestRoot() { return rootCount == 0 ? NIL : roots[rootCount - 1]; }
+
+  private void setRoot(int v, R revision, int root) {
+    if (v == rootCount) {
+      if (rootCount == roots.length) {
+        roots = Arrays.copyOf(roots, rootCount * 2);
+        rootRevisions = Arrays.copyOf(rootRevisions, rootCount * 2);
+      }
+
+      rootRevisions[rootCount++] = revision;
+    }
+
+    roots[v] = root;
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   */
+  public int size(R revision) {
+    int v = readRevision(revision);
+
+    return size(findRoot(v), v);
+  }
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  public int size() { return this.size; }
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   */
+  public boolean isEmpty(R revision) {
+    return findRoot(readRevision(revision)) == NIL;
+  }
+
+  /***************************************************************************
+   *  Standard BST search.
+   ***************************************************************************/
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E predecessor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to predecessor() is null");
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    E accumulator = null;
+
+    while (x != NIL) {
+      if (elementComparator.compare(element, element(x)) <= 0) {
+        x = left(x, v);
+      } else {
+        accumulator = element(x);
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E successor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to successor() is null");
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    E accumulator = null;
+
+    while (x != NIL) {
+      if (elementComparator.compare(element, element(x)) < 0) {
+        accumulator = element(x);
+        x = left(x, v);
+      } else {
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E floor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to floor() is null");
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    E accumulator = null;
+
+    while (x != NIL) {
+      int cmp = elementComparator.compare(element, element(x));
+
+      if (cmp < 0) {
+        x = left(x, v);
+      } else {
+        accumulator = element(x);
+        if (cmp == 0) break;
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E ceiling(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to ceiling() is null");
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    E accumulator = null;
+
+    while (x != NIL) {
+      int cmp = elementComparator.compare(element, element(x));
+
+      if (cmp > 0) {
+        x = right(x, v);
+      } else {
+        accumulator = element(x);
+        if (cmp == 0) break;
+        x = left(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   */
+  public boolean contains(E element, R revision) {
+    int v = readRevision(revision);
+    int x = findRoot(v);
+
+    while (x != NIL) {
+      int cmp = elementComparator.compare(element, element(x));
+      if      (cmp < 0) x = left(x, v);
+      else if (cmp > 0) x = right(x, v);
+      else              return true;
+    }
+
+    return false;
+  }
+
+  /***************************************************************************
+   *  Red-black tree insertion.
+   ***************************************************************************/
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean add(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to add() is null");
+
+    int v = writeRevision(revision);
+    int root = latestRoot();
+
+    if (root == NIL) {
+      root = newNode(element, v, false);
+    } else {
+      root = add(root, element, v);
+
+      if (root == NIL) return false;
+
+      root = setColor(root, v, false);
+    }
+
+    setRoot(v, revision, root);
+
+    this.size++;
+
+    return true;
+  }
+
+  // returns the new root of the subtree, or NIL if the element is already in
+  // the subtree, in which case no set records have been written
+  private int add(int h, E element, int v) {
+    if (h == NIL) return newNode(element, v, true);
+
+    int cmp = elementComparator.compare(element, element(h));
+
+    if (cmp == 0) return NIL;
+
+    int child;
+
+    if (cmp < 0) {
+      child = add(left(h, v), element, v);
+      if (child == NIL) return NIL;
+      h = setLeft(h, v, child);
+    } else {
+      child = add(right(h, v), element, v);
+      if (child == NIL) return NIL;
+      h = setRight(h, v, child);
+    }
+
+    // fix-up any right-leaning links
+    if (isRed(right(h, v), v) && !isRed(left(h, v), v))
+      h = rotateLeft(h, v);
+    if (isRed(left(h, v), v) && isRed(left(left(h, v), v), v))
+      h = rotateRight(h, v);
+    if (isRed(left(h, v), v) && isRed(right(h, v), v))
+      h = flipColors(h, v);
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Red-black tree deletion.
+   ***************************************************************************/
+
+  // useful because this is a left-leaning tree
+  private int deleteMin(int h, int v) {
+    int left = left(h, v);
+
+    if (left == NIL)
+      return NIL;
+
+    if (!isRed(left, v) && !isRed(left(left, v), v))
+      h = moveRedLeft(h, v);
+
+    h = setLeft(h, v, deleteMin(left(h, v), v));
+    return balance(h, v);
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses is not much cheaper than one that hits: the tree is
+   * rebalanced on the way down before the element is known to be missing,
+   * and every change is then undone. Callers that expect many misses should
+   * check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean remove(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to remove() is null");
+
+    int v = writeRevision(revision);
+    int root = latestRoot();
+
+    if (root == NIL) return false;
+
+    int allocated = nodes;
+
+    changeCount = 0;
+    journaling = true;
+    removed = false;
+
+    try {
+      // if both children of root are black, set root to red
+      if (!isRed(left(root, v), v) && !isRed(right(root, v), v))
+        root = setColor(root, v, true);
+
+      root = remove(root, element, v);
+
+      if (!removed) {
+        rollback(allocated);
+        return false;
+      }
+    } finally {
+      journaling = false;
+      changeCount = 0;
+    }
+
+    if (root != NIL) root = setColor(root, v, false);
+
+    setRoot(v, revision, root);
+
+    this.size--;
+
+    return true;
+  }
+
+  // sets `removed` if the element was found; otherwise the returned subtree is
+  // meaningless and the journaled writes must be rolled back
+  private int remove(int h, E element, int v) {
+    if (elementComparator.compare(element, element(h)) < 0)  {
+      int left = left(h, v);
+
+      // fell off the tree: the element is not in the set
+      if (left == NIL) return h;
+
+      if (!isRed(left, v) && !isRed(left(left, v), v))
+        h = moveRedLeft(h, v);
+
+      left = remove(left(h, v), element, v);
+
+      if (!removed) return h;
+
+      h = setLeft(h, v, left);
+
+    } else {
+
+      if (isRed(left(h, v), v))
+        h = rotateRight(h, v);
+
+      int right = right(h, v);
+
+      if (elementComparator.compare(element, element(h)) == 0 && right == NIL) {
+        removed = true;
+        return NIL;
+      }
+
+      if (right == NIL) return h;
+
+      if (!isRed(right, v) && !isRed(left(right, v), v))
+        h = moveRedRight(h, v);
+
+      right = right(h, v);
+
+      // you've found the node you're looking for
+      if (elementComparator.compare(element, element(h)) == 0) {
+        removed = true;
+
+        int left = left(h, v);
+        boolean red = isRed(h, v);
+
+        // right min is the new root
+        int rightMin = min(right, v);
+        int rightSubtree = deleteMin(right, v);
+
+        // the successor takes over the position, and so the color, of `h`
+        h = update(rightMin, v, left, rightSubtree, red);
+      } else {
+        right = remove(right, element, v);
+
+        if (!removed) return h;
+
+        h = setRight(h, v, right);
+      }
+    }
+    return balance(h, v);
+  }
+
+  /***************************************************************************
+   *  Red-black tree helper functions.
+   ***************************************************************************/
+
+  // make a left-leaning link lean to the right
+  private int rotateRight(int h, int v) {
+    int record = findRevision(h, v);
+    int left = lefts[record], right = rights[record];
+    boolean red = (sizes[record] & 1) == 1;
+
+    record = findRevision(left, v);
+    int leftLeft = lefts[record], leftRight = rights[record];
+
+    h = update(h, v, leftRight, right, true);
+
+    // note that `left` is now the root of the subtree because of the rotation
+    return update(left, v, leftLeft, h, red);
+  }
+
+  // make a right-leaning link lean to the left
+  private int rotateLeft(int h, int v) {
+    int record = findRevision(h, v);
+    int left = lefts[record], right = rights[record];
+    boolean red = (sizes[record] & 1) == 1;
+
+    record = findRevision(right, v);
+    int rightLeft = lefts[record], rightRight = rights[record];
+
+    h = update(h, v, left, rightLeft, true);
+
+    // note that `right` is now the root of the subtree because of the rotation
+    return update(right, v, h, rightRight, red);
+  }
+
+  // flip the colors of a node and its two children, returning the node now in
+  // the place of `h`
+  private int flipColors(int h, int v) {
+    int record = findRevision(h, v);
+    int left = lefts[record], right = rights[record];
+    boolean red = (sizes[record] & 1) == 1;
+
+    left = setColor(left, v, !isRed(left, v));
+    right = setColor(right, v, !isRed(right, v));
+
+    return update(h, v, left, right, !red);
+  }
+
+  // Assuming that h is red and both h.left and h.left.left are black, make
+  // h.left or one of its children red.
+  private int moveRedLeft(int h, int v) {
+    h = flipColors(h, v);
+
+    int right = right(h, v);
+
+    if (isRed(left(right, v), v)) {
+      h = setRight(h, v, rotateRight(right, v));
+      h = rotateLeft(h, v);
+      h = flipColors(h, v);
+    }
+
+    return h;
+  }
+
+  // Assuming that h is red and both h.right and h.right.left are black, make
+  // h.right or one of its children red.
+  private int moveRedRight(int h, int v) {
+    h = flipColors(h, v);
+
+    if (isRed(left(left(h, v), v), v)) {
+      h = rotateRight(h, v);
+      h = flipColors(h, v);
+    }
+
+    return h;
+  }
+
+  // restore red-black tree invariant
+  private int balance(int h, int v) {
+    if (isRed(right(h, v), v))
+      h = rotateLeft(h, v);
+
+    if (isRed(left(h, v), v) && isRed(left(left(h, v), v), v))
+      h = rotateRight(h, v);
+
+    if (isRed(left(h, v), v) && isRed(right(h, v), v))
+      h = flipColors(h, v);
+
+    return h;
+  }
+
+  private int min(int x, int v) {
+    for (int left = left(x, v); left != NIL; left = left(x, v))
+      x = left;
+
+    return x;
+  }
+
+  /***************************************************************************
+   *  Check integrity of red-black tree data structure.
+   ***************************************************************************/
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  public boolean check() {
+    for (int v = 0; v < rootCount; v++)
+      if (!check(findRoot(v), v)) return false;
+
+    return true;
+  }
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree.
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   * @see PersistentSet#check(Object)
+   */
+  public boolean check(R revision) {
+    int v = readRevision(revision);
+
+    return check(findRoot(v), v);
+  }
+
+  private boolean check(int root, int v) {
+    return !isRed(root, v) &&
+      isBST(root, NIL, NIL, v) &&
+      isSizeConsistent(root, v) &&
+      is23(root, v) &&
+      isBalanced(root, v);
+  }
+
+  // is the tree rooted at x a BST with all elements strictly between the
+  // elements of min and max (if min or max is NIL, treat as empty constraint)?
+  private boolean isBST(int x, int min, int max, int v) {
+    if (x == NIL) return true;
+    if (min != NIL && elementComparator.compare(element(x), element(min)) <= 0) return false;
+    if (max != NIL && elementComparator.compare(element(x), element(max)) >= 0) return false;
+
+    return isBST(left(x, v), min, x, v) && isBST(right(x, v), x, max, v);
+  }
+
+  // are the size fields correct?
+  private boolean isSizeConsistent(int x, int v) {
+    if (x == NIL) return true;
+
+    int left = left(x, v), right = right(x, v);
+
+    if (size(x, v) != size(left, v) + size(right, v) + 1) return false;
+
+    return isSizeConsistent(left, v) && isSizeConsistent(right, v);
+  }
+
+  // does the tree have no red right links, and at most one (left) red link
+  // in a row on any path?
+  private boolean is23(int x, int v) {
+    if (x == NIL) return true;
+
+    int left = left(x, v), right = right(x, v);
+
+    if (isRed(right, v)) return false;
+    if (isRed(x, v) && isRed(left, v)) return false;
+
+    return is23(left, v) && is23(right, v);
+  }
+
+  // do all paths from root to leaf have same number of black edges?
+  private boolean isBalanced(int root, int v) {
+    // number of black links on path from root to min
+    int black = 0;
+
+    for (int x = root; x != NIL; x = left(x, v))
+      if (!isRed(x, v)) black++;
+
+    return isBalanced(root, black, v);
+  }
+
+  // does every path from the root to a leaf have the given number of black
+  // links?
+  private boolean isBalanced(int x, int black, int v) {
+    if (x == NIL) return black == 0;
+
+    if (!isRed(x, v)) black--;
+
+    return isBalanced(left(x, v), black, v) && isBalanced(right(x, v), black, v);
+  }
+
+  /**
+   * Stringifies the set for all revisions.
+   *
+   * @return a string version of the tree with newlines for each revision
+   */
+  public String toString () {
+    StringBuilder str = new StringBuilder();
+
+    for (int v = 0; v < rootCount; v++)
+      str.append("revision ").append(revision(v)).append(": ")
+        .append(toString(revision(v))).append("\n");
+
+    return str.toString();
+  }
+
+  /**
+   * Stringifies the set for the specified revision.
+   *
+   * @param revision the revision to stringify
+   * @return a string version of the tree in the recursive form of
+   * (root left-tree right-tree).
+   */
+  public String toString (R revision) {
+    int v = readRevision(revision);
+    int root = findRoot(v);
+
+    return root == NIL ?
+      "No tree exists at revision " + revision : toString(root, v);
+  }
+
+  private String toString (int x, int v) {
+    if (x == NIL) return "()";
+
+    // the element
+    return "({" + elements[x] + ":" +
+      // the color
+      (isRed(x, v) ? "red" : "black") + "} " +
+      // the left
+      toString(left(x, v), v) + " " +
+      // the right
+      toString(right(x, v), v) + ")";
+  }
+}
@@ -0,0 +1,418 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Timings behind the choices made in the sets, run with
+ * {@code java Benchmarks [name...]}, where each name picks one benchmark and
+ * no names run them all: {@code add}, {@code remove}, {@code capacity},
+ * {@code engines} and {@code doubles}. Every benchmark repeats its work for a
+ * few rounds, the first of which warm up the JIT, and prints the best of the
+ * rest.
+ *
+ * The numbers are rough: they come from {@code System.nanoTime} around the
+ * operations rather than from a harness such as JMH, so they are only fit for
+ * comparing the cases with each other on one machine.
+ *
+ * @author Michael Davis
+ */
+
+public class Benchmarks {
+
+  private static final int SIZE = 1 << 16;
+  private static final int OPERATIONS = 1 << 14;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 8;
+
+  // keeps the JIT from dropping reads whose results are never used
+  private static long sink;
+
+  // the operations every benchmarked set offers, on long elements and revisions
+  private interface LongSet extends AutoCloseable {
+    boolean add(long element, long revision);
+    boolean remove(long element, long revision);
+    boolean contains(long element, long revision);
+    default void close() {}
+  }
+
+  public static void main(String[] args) {
+    List<String> names = Arrays.asList(args);
+
+    if (names.isEmpty() || names.contains("add")) add();
+    if (names.isEmpty() || names.contains("remove")) remove();
+    if (names.isEmpty() || names.contains("capacity")) capacity();
+    if (names.isEmpty() || names.contains("engines")) compareEngines();
+    if (names.isEmpty() || names.contains("doubles")) doubles();
+  }
+
+  private static Map<String, Supplier<LongSet>> engines() {
+    Map<String, Supplier<LongSet>> engines = new LinkedHashMap<String, Supplier<LongSet>>();
+
+    for (RevisionedSet.Storage storage : RevisionedSet.Storage.values())
+      engines.put(storage.toString(), () -> of(RevisionedSet.<Long, Long>create(storage)));
+
+    engines.put("PersistentLongSet", () -> of(new PersistentLongSet()));
+    engines.put("OffHeapPersistentLongSet", () -> of(new OffHeapPersistentLongSet()));
+
+    return engines;
+  }
+
+  private static LongSet of(RevisionedSet<Long, Long> set) {
+    return new LongSet() {
+      public boolean add(long e, long r) { return set.add(e, r); }
+      public boolean remove(long e, long r) { return set.remove(e, r); }
+      public boolean contains(long e, long r) { return set.contains(e, r); }
+    };
+  }
+
+  private static LongSet of(PersistentLongSet set) {
+    return new LongSet() {
+      public boolean add(long e, long r) { return set.add(e, r); }
+      public boolean remove(long e, long r) { return set.remove(e, r); }
+      public boolean contains(long e, long r) { return set.contains(e, r); }
+    };
+  }
+
+  private static LongSet of(OffHeapPersistentLongSet set) {
+    return new LongSet() {
+      public boolean add(long e, long r) { return set.add(e, r); }
+      public boolean remove(long e, long r) { return set.remove(e, r); }
+      public boolean contains(long e, long r) { return set.contains(e, r); }
+      public void close() { set.close(); }
+    };
+  }
+
+  // the even numbers below 2 * SIZE, added at revision 0 in random order
+  private static LongSet evens(Supplier<LongSet> engine, Random random) {
+    LongSet set = engine.get();
+
+    for (long element : shuffled(SIZE, random)) set.add(2 * element, 0);
+
+    return set;
+  }
+
+  private static long[] shuffled(int n, Random random) {
+    long[] values = new long[n];
+
+    for (int i = 0; i < n; i++) values[i] = i;
+
+    for (int i = n - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      long swap = values[i];
+      values[i] = values[j];
+      values[j] = swap;
+    }
+
+    return values;
+  }
+
+  private static long best(long[] times) {
+    long best = Long.MAX_VALUE;
+
+    for (int round = WARMUP_ROUNDS; round < times.length; round++)
+      best = Math.min(best, times[round]);
+
+    return best;
+  }
+
+  private static String perOperation(long nanos) {
+    return perOperation(nanos, OPERATIONS);
+  }
+
+  private static String perOperation(long nanos, int operations) {
+    return String.format("%8.0f ns", (double) nanos / operations);
+  }
+
+  // the heap in use, and the direct buffers of the off-heap set
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+
+    for (int i = 0; i < 3; i++) System.gc();
+
+    long used = runtime.totalMemory() - runtime.freeMemory();
+
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+      if (pool.getName().equals("direct")) used += pool.getMemoryUsed();
+
+    return used;
+  }
+
+  /*
+   * add finds a duplicate on its way down, instead of walking the tree with
+   * contains first as it used to. Times adds of new elements and of
+   * duplicates, alone and after a contains check.
+   */
+  private static void add() {
+    System.out.println("add: new, duplicate, new after contains, duplicate after contains");
+
+    for (Map.Entry<String, Supplier<LongSet>> engine : engines().entrySet()) {
+      long[][] times = new long[4][ROUNDS];
+
+      for (int round = 0; round < ROUNDS; round++) {
+        Random random = new Random(round);
+
+        try (LongSet set = evens(engine.getValue(), random)) {
+          long revision = 1;
+
+          // new elements are odd, and removed again so the set keeps its size
+          for (int i = 0; i < OPERATIONS; i++) {
+            long added = 2 * random.nextInt(SIZE) + 1;
+            long duplicate = 2 * random.nextInt(SIZE);
+            long guardedAdded = 2 * random.nextInt(SIZE) + 1;
+            long guardedDuplicate = 2 * random.nextInt(SIZE);
+
+            long start = System.nanoTime();
+            set.add(added, revision);
+            times[0][round] += System.nanoTime() - start;
+            set.remove(added, revision++);
+
+            start = System.nanoTime();
+            set.add(duplicate, revision++);
+            times[1][round] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (!set.contains(guardedAdded, revision)) set.add(guardedAdded, revision);
+            times[2][round] += System.nanoTime() - start;
+            set.remove(guardedAdded, revision++);
+
+            start = System.nanoTime();
+            if (!set.contains(guardedDuplicate, revision)) set.add(guardedDuplicate, revision);
+            times[3][round] += System.nanoTime() - start;
+            revision++;
+          }
+        }
+      }
+
+      System.out.printf("  %-26s%s%s%s%s%n", engine.getKey(), perOperation(best(times[0])),
+          perOperation(best(times[1])), perOperation(best(times[2])),
+          perOperation(best(times[3])));
+    }
+  }
+
+  /*
+   * A remove restructures the tree on the way down before it knows whether
+   * the element is there, and undoes the changes when it is not. Times
+   * removes that hit and miss, with and without a contains check first.
+   */
+  private static void remove() {
+    System.out.println("remove: hit, miss, hit after contains, miss after contains");
+
+    for (Map.Entry<String, Supplier<LongSet>> engine : engines().entrySet()) {
+      long[][] times = new long[4][ROUNDS];
+
+      for (int round = 0; round < ROUNDS; round++) {
+        Random random = new Random(round);
+
+        try (LongSet set = evens(engine.getValue(), random)) {
+          long revision = 1;
+
+          // each timed remove gets an element and a revision of its own, so
+          // that none of them runs down a path the one before just wrote
+          for (int i = 0; i < OPERATIONS; i++) {
+            long hit = 2 * random.nextInt(SIZE);
+            long miss = 2 * random.nextInt(SIZE) + 1;
+            long guardedHit = 2 * random.nextInt(SIZE);
+            long guardedMiss = 2 * random.nextInt(SIZE) + 1;
+
+            long start = System.nanoTime();
+            set.remove(hit, revision);
+            times[0][round] += System.nanoTime() - start;
+            set.add(hit, revision++);
+
+            start = System.nanoTime();
+            set.remove(miss, revision++);
+            times[1][round] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            if (set.contains(guardedHit, revision)) set.remove(guardedHit, revision);
+            times[2][round] += System.nanoTime() - start;
+            set.add(guardedHit, revision++);
+
+            start = System.nanoTime();
+            if (set.contains(guardedMiss, revision)) set.remove(guardedMiss, revision);
+            times[3][round] += System.nanoTime() - start;
+            revision++;
+          }
+        }
+      }
+
+      System.out.printf("  %-26s%s%s%s%s%n", engine.getKey(), perOperation(best(times[0])),
+          perOperation(best(times[1])), perOperation(best(times[2])),
+          perOperation(best(times[3])));
+    }
+  }
+
+  /*
+   * A node holds a fixed number of set records before a write copies it, so
+   * larger nodes save copies on write and cost a longer search on every read
+   * at a past revision. Times each capacity from 1 to 32, and an adaptive
+   * set, on a mix of writes and past-revision reads: eight writes to a read,
+   * as many of each, and eight reads to a write. Also prints the heap each
+   * write leaves behind, from the write-heavy mix.
+   */
+  private static void capacity() {
+    System.out.println("capacity: write-heavy, balanced, read-heavy, bytes per write");
+
+    for (int capacity = 1; capacity <= 32; capacity++) {
+      int recordCapacity = capacity;
+      capacity(String.valueOf(capacity),
+          () -> of(new PersistentSet<Long, Long>(recordCapacity)));
+    }
+
+    capacity("adaptive", () -> of(PersistentSet.<Long, Long>adaptive()));
+  }
+
+  private static void capacity(String name, Supplier<LongSet> sets) {
+    int[] writes = { 8, 1, 1 };
+    int[] reads = { 1, 1, 8 };
+    long[][] times = new long[writes.length][ROUNDS];
+    long bytes = 0;
+
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int mix = 0; mix < writes.length; mix++) {
+        Random random = new Random(round);
+        boolean measured = mix == 0 && round == ROUNDS - 1;
+
+        try (LongSet set = evens(sets, random)) {
+          long before = measured ? usedMemory() : 0;
+          long revision = 1;
+          long start = System.nanoTime();
+
+          for (int i = 0; i < OPERATIONS; i++) {
+            long element = random.nextInt(2 * SIZE);
+
+            if (i % (writes[mix] + reads[mix]) < writes[mix]) {
+              // toggles the element, so the set keeps its size
+              if (!set.add(element, revision)) set.remove(element, revision);
+              revision++;
+            } else {
+              set.contains(element, (long) random.nextInt((int) revision));
+            }
+          }
+
+          times[mix][round] = System.nanoTime() - start;
+
+          if (measured) bytes = (usedMemory() - before) / (revision - 1);
+        }
+      }
+    }
+
+    System.out.printf("  %-10s%s%s%s%8d B%n", name, perOperation(best(times[0])),
+        perOperation(best(times[1])), perOperation(best(times[2])), bytes);
+  }
+
+  /*
+   * The storage engines side by side, with the primitive sets: the time to
+   * insert SIZE elements at a revision each, the memory that leaves behind
+   * per revision, and the time of a contains at the latest revision and at a
+   * random past one.
+   */
+  private static void compareEngines() {
+    System.out.println("engines: insert, contains at latest, contains in past, bytes per revision");
+
+    for (Map.Entry<String, Supplier<LongSet>> engine : engines().entrySet()) {
+      long[][] times = new long[3][ROUNDS];
+      long bytes = 0;
+
+      for (int round = 0; round < ROUNDS; round++) {
+        Random random = new Random(round);
+        long[] elements = shuffled(SIZE, random);
+        boolean measured = round == ROUNDS - 1;
+        long before = measured ? usedMemory() : 0;
+
+        try (LongSet set = engine.getValue().get()) {
+          long start = System.nanoTime();
+          for (int i = 0; i < SIZE; i++) set.add(elements[i], i);
+          times[0][round] = System.nanoTime() - start;
+
+          if (measured) bytes = (usedMemory() - before) / SIZE;
+
+          start = System.nanoTime();
+          for (int i = 0; i < OPERATIONS; i++)
+            if (set.contains(random.nextInt(SIZE), SIZE - 1)) sink++;
+          times[1][round] = System.nanoTime() - start;
+
+          start = System.nanoTime();
+          for (int i = 0; i < OPERATIONS; i++)
+            if (set.contains(random.nextInt(SIZE), random.nextInt(SIZE))) sink++;
+          times[2][round] = System.nanoTime() - start;
+        }
+      }
+
+      System.out.printf("  %-26s%s%s%s%8d B%n", engine.getKey(),
+          perOperation(best(times[0]), SIZE), perOperation(best(times[1])),
+          perOperation(best(times[2])), bytes);
+    }
+  }
+
+  /*
+   * PersistentDoubleSet stores doubles unboxed, in a PersistentLongSet.
+   * Times it against a PersistentSet of boxed Doubles: inserting SIZE random
+   * doubles at a revision each, then a contains at the latest revision and a
+   * predecessor at a random past one.
+   */
+  private static void doubles() {
+    System.out.println("doubles: insert, contains at latest, predecessor in past");
+
+    long[][] boxed = new long[3][ROUNDS];
+    long[][] unboxed = new long[3][ROUNDS];
+
+    for (int round = 0; round < ROUNDS; round++) {
+      Random random = new Random(round);
+      double[] elements = new double[SIZE];
+      int[] probes = new int[OPERATIONS];
+      int[] revisions = new int[OPERATIONS];
+
+      for (int i = 0; i < SIZE; i++) elements[i] = random.nextDouble();
+
+      for (int i = 0; i < OPERATIONS; i++) {
+        probes[i] = random.nextInt(SIZE);
+        revisions[i] = random.nextInt(SIZE);
+      }
+
+      PersistentSet<Double, Double> generic = new PersistentSet<Double, Double>();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < SIZE; i++) generic.add(elements[i], (double) i);
+      boxed[0][round] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < OPERATIONS; i++)
+        if (generic.contains(elements[probes[i]], (double) (SIZE - 1))) sink++;
+      boxed[1][round] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < OPERATIONS; i++)
+        if (generic.predecessor(elements[probes[i]], (double) revisions[i]) != null) sink++;
+      boxed[2][round] = System.nanoTime() - start;
+
+      PersistentDoubleSet primitive = new PersistentDoubleSet();
+
+      start = System.nanoTime();
+      for (int i = 0; i < SIZE; i++) primitive.add(elements[i], i);
+      unboxed[0][round] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < OPERATIONS; i++)
+        if (primitive.contains(elements[probes[i]], SIZE - 1)) sink++;
+      unboxed[1][round] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < OPERATIONS; i++)
+        if (primitive.predecessor(elements[probes[i]], revisions[i], -1) >= 0) sink++;
+      unboxed[2][round] = System.nanoTime() - start;
+    }
+
+    System.out.printf("  %-30s%s%s%s%n", "PersistentSet<Double, Double>",
+        perOperation(best(boxed[0]), SIZE), perOperation(best(boxed[1])),
+        perOperation(best(boxed[2])));
+    System.out.printf("  %-30s%s%s%s%n", "PersistentDoubleSet",
+        perOperation(best(unboxed[0]), SIZE), perOperation(best(unboxed[1])),
+        perOperation(best(unboxed[2])));
+  }
+}
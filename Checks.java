@@ -0,0 +1,91 @@
+/**
+ * Regression checks for the sets, run with {@code java Checks}. Each check
+ * throws an {@code AssertionError} on failure, so a clean exit means every
+ * check passed.
+ *
+ * @author Michael Davis
+ */
+
+public class Checks {
+
+  public static void main(String[] args) {
+    pastWriteIsRejected();
+    pastLongWriteIsRejected();
+    pastDoubleWriteIsRejected();
+    capacityIsPositive();
+
+    System.out.println("all checks passed");
+  }
+
+  // a write into the past used to change the nodes shared with later
+  // revisions, so revision 2 below gained 7 and lost 5
+  private static void pastWriteIsRejected() {
+    PersistentSet<Integer, Integer> set = new PersistentSet<Integer, Integer>();
+    for (int i = 0; i < 100; i += 10) set.add(i, 0);
+    set.add(5, 2);
+
+    expectRejected(() -> set.add(7, 1));
+    expectRejected(() -> set.remove(10, 1));
+
+    check(set.contains(5, 2), "revision 2 lost 5");
+    check(!set.contains(7, 2), "revision 2 gained 7");
+    check(!set.contains(7, 1), "revision 1 gained 7");
+    check(set.contains(10, 1), "revision 1 lost 10");
+    check(set.check(2), "revision 2 is not a valid tree");
+  }
+
+  // the same case for the primitive sets, which have their own copy of the
+  // root fast path
+  private static void pastLongWriteIsRejected() {
+    PersistentLongSet set = new PersistentLongSet();
+    for (long i = 0; i < 100; i += 10) set.add(i, 0L);
+    set.add(5L, 2L);
+
+    expectRejected(() -> set.add(7L, 1L));
+    expectRejected(() -> set.remove(10L, 1L));
+
+    check(set.contains(5L, 2L), "revision 2 lost 5");
+    check(!set.contains(7L, 2L), "revision 2 gained 7");
+    check(set.contains(10L, 1L), "revision 1 lost 10");
+    check(set.check(2L), "revision 2 is not a valid tree");
+  }
+
+  private static void pastDoubleWriteIsRejected() {
+    PersistentDoubleSet set = new PersistentDoubleSet();
+    for (double i = 0; i < 100; i += 10) set.add(i, 0.0);
+    set.add(5.0, 2.0);
+
+    expectRejected(() -> set.add(7.0, 1.0));
+    expectRejected(() -> set.remove(10.0, 1.0));
+
+    check(set.contains(5.0, 2.0), "revision 2 lost 5");
+    check(!set.contains(7.0, 2.0), "revision 2 gained 7");
+    check(set.contains(10.0, 1.0), "revision 1 lost 10");
+    check(set.check(), "the tree is not valid");
+  }
+
+  // a capacity of 0 used to mean an adaptive set
+  private static void capacityIsPositive() {
+    expectRejected(() -> new PersistentSet<Integer, Integer>(0));
+    expectRejected(() -> new PersistentSet<Integer, Integer>(-1));
+
+    PersistentSet<Integer, Integer> set = PersistentSet.adaptive();
+    for (int i = 0; i < 5000; i++) set.add(i, i);
+
+    check(set.size(4999) == 5000, "the adaptive set lost elements");
+    check(set.check(), "the adaptive set is not a valid tree");
+  }
+
+  private static void expectRejected(Runnable write) {
+    try {
+      write.run();
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    throw new AssertionError("an invalid argument was accepted");
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}
@@ -0,0 +1,951 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A Persistent Left Leaning RedBlack Tree of {@code long} elements at
+ * {@code long} revisions, with its nodes and set records stored off the heap.
+ *
+ * The same tree as {@link ArrayPersistentSet}, with the node and set record
+ * arrays laid out in direct {@code java.nio.ByteBuffer} chunks instead of
+ * Java arrays. However many set records the history grows to, the heap only
+ * holds one buffer object per chunk of nodes and one root record per
+ * revision, so the garbage collector has next to nothing to trace.
+ *
+ * The set must be closed once it is no longer needed, after which it cannot
+ * be used. Closing only gives up the set's references to its chunks: direct
+ * buffers have no way to be freed on request, so their native memory is
+ * returned only once a garbage collection finds them unreachable. Until then
+ * it still counts against the limit set by {@code -XX:MaxDirectMemorySize},
+ * which a large history, at about 1.5 MB per chunk of 16384 nodes, may need
+ * raised.
+ *
+ * Writing at a revision earlier than the latest one is rejected.
+ *
+ * @author Robert Sedgewick
+ * @author Kevin Wayne
+ * @author Michael Davis
+ */
+
+public class OffHeapPersistentLongSet implements AutoCloseable {
+
+  private static final int MAX_RECORD_CHANGES = 5;
+
+  // the null link
+  private static final int NIL = -1;
+
+  // a node is its element, its number of set records, and then its set
+  // records, each of which is the position of its revision among the root
+  // records, its left and right children, and its size shifted left by one
+  // with the low bit set if the node is red
+  private static final int ELEMENT = 0;
+  private static final int COUNT = 8;
+  private static final int RECORDS = 16;
+  private static final int REVISION = 0;
+  private static final int LEFT = 4;
+  private static final int RIGHT = 8;
+  private static final int SIZE = 12;
+  private static final int RECORD_BYTES = 16;
+  private static final int NODE_BYTES = RECORDS + MAX_RECORD_CHANGES * RECORD_BYTES;
+
+  // nodes are allocated a chunk at a time, so the arena grows without copying
+  private static final int CHUNK_SHIFT = 14;
+  private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+  private ByteBuffer[] chunks = new ByteBuffer[16];
+  private int nodes = 0;
+
+  // root records: the tree at rootRevisions[v] is rooted at roots[v]
+  private long[] rootRevisions = new long[16];
+  private int[] roots = new int[16];
+  private int rootCount = 0;
+
+  private int size = 0;
+
+  // the top-down deletion restructures the tree before it knows whether the
+  // element is there at all, so its writes are journaled, five ints to a
+  // write, and rolled back when the element turns out to be absent
+  private int[] changes = new int[80];
+  private int changeCount = 0;
+  private boolean journaling = false;
+  private boolean removed;
+
+  /**
+   * Initializes an empty set.
+   */
+  public OffHeapPersistentLongSet() { }
+
+  /**
+   * Gives up the nodes and set records of every revision. Their native memory
+   * is returned at the next garbage collection that finds the chunks
+   * unreachable, not by this call. Does nothing if the set is already closed.
+   */
+  public void close() {
+    chunks = null;
+    nodes = 0;
+    rootRevisions = null;
+    roots = null;
+    rootCount = 0;
+    size = 0;
+  }
+
+  private void ensureOpen() {
+    if (chunks == null) throw new IllegalStateException("set is closed");
+  }
+
+  /***************************************************************************
+   *  Node helper methods.
+   ***************************************************************************/
+
+  private ByteBuffer chunk(int x) { return chunks[x >>> CHUNK_SHIFT]; }
+
+  // where node x starts within its chunk
+  private int offset(int x) { return (x & CHUNK_MASK) * NODE_BYTES; }
+
+  private long element(int x) { return chunk(x).getLong(offset(x) + ELEMENT); }
+
+  private int count(int x) { return chunk(x).getInt(offset(x) + COUNT); }
+
+  // where the latest set record of node x starts within its chunk
+  private int lastRecord(int x) {
+    return offset(x) + RECORDS + (count(x) - 1) * RECORD_BYTES;
+  }
+
+  // where the set record of node x in force at revision `v` starts within its
+  // chunk: the latest one made at or before it
+  private int findRevision(int x, int v) {
+    ByteBuffer chunk = chunk(x);
+    int first = offset(x) + RECORDS;
+    int last = chunk.getInt(offset(x) + COUNT) - 1;
+
+    // reads and writes at the newest revision skip the binary search
+    if (v >= chunk.getInt(first + last * RECORD_BYTES + REVISION))
+      return first + last * RECORD_BYTES;
+
+    int begin = 0;
+    int end = last;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      if (chunk.getInt(first + mid * RECORD_BYTES + REVISION) <= v)
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return first + Math.max(end, 0) * RECORD_BYTES;
+  }
+
+  private int left(int x, int v) { return chunk(x).getInt(findRevision(x, v) + LEFT); }
+
+  private int right(int x, int v) { return chunk(x).getInt(findRevision(x, v) + RIGHT); }
+
+  private boolean isRed(int x, int v) {
+    return x == NIL ? false : (chunk(x).getInt(findRevision(x, v) + SIZE) & 1) == 1;
+  }
+
+  // number of node in subtree rooted at x; 0 if x is NIL
+  private int size(int x, int v) {
+    return x == NIL ? 0 : chunk(x).getInt(findRevision(x, v) + SIZE) >>> 1;
+  }
+
+  private int newNode(long element) {
+    int chunk = nodes >>> CHUNK_SHIFT;
+
+    if (chunk == chunks.length) chunks = Arrays.copyOf(chunks, chunk * 2);
+
+    if (chunks[chunk] == null)
+      chunks[chunk] = ByteBuffer.allocateDirect((CHUNK_MASK + 1) * NODE_BYTES)
+        .order(ByteOrder.nativeOrder());
+
+    int x = nodes++;
+
+    chunk(x).putLong(offset(x) + ELEMENT, element);
+    chunk(x).putInt(offset(x) + COUNT, 0);
+
+    return x;
+  }
+
+  private int newNode(long element, int v, boolean red) {
+    int x = newNode(element);
+    ByteBuffer chunk = chunk(x);
+    int at = offset(x) + RECORDS;
+
+    chunk.putInt(offset(x) + COUNT, 1);
+    chunk.putInt(at + REVISION, v);
+    chunk.putInt(at + LEFT, NIL);
+    chunk.putInt(at + RIGHT, NIL);
+    chunk.putInt(at + SIZE, 1 << 1 | (red ? 1 : 0));
+
+    return x;
+  }
+
+  private int setLeft(int x, int v, int left) {
+    ByteBuffer chunk = chunk(x);
+    int at = lastRecord(x);
+
+    return update(x, v, left, chunk.getInt(at + RIGHT),
+        (chunk.getInt(at + SIZE) & 1) == 1);
+  }
+
+  private int setRight(int x, int v, int right) {
+    ByteBuffer chunk = chunk(x);
+    int at = lastRecord(x);
+
+    return update(x, v, chunk.getInt(at + LEFT), right,
+        (chunk.getInt(at + SIZE) & 1) == 1);
+  }
+
+  private int setColor(int x, int v, boolean red) {
+    ByteBuffer chunk = chunk(x);
+    int at = lastRecord(x);
+
+    return update(x, v, chunk.getInt(at + LEFT), chunk.getInt(at + RIGHT), red);
+  }
+
+  // records the whole state of node x at revision `v`; returns the node
+  // holding the new record, which is a copy if x is full
+  private int update(int x, int v, int left, int right, boolean red) {
+    int size = size(left, v) + size(right, v) + 1;
+    ByteBuffer chunk = chunk(x);
+    int count = count(x);
+    int at = lastRecord(x);
+
+    if (chunk.getInt(at + REVISION) == v) {
+      // replace the record already made at `v`
+      journal(x, at, chunk.getInt(at + LEFT), chunk.getInt(at + RIGHT),
+          chunk.getInt(at + SIZE));
+    } else {
+      // if we've maxed out this node, allocate a new one
+      if (count >= MAX_RECORD_CHANGES) {
+        x = newNode(element(x));
+        chunk = chunk(x);
+        count = 0;
+      }
+
+      at = offset(x) + RECORDS + count * RECORD_BYTES;
+      journal(x, NIL, 0, 0, 0);
+      chunk.putInt(offset(x) + COUNT, count + 1);
+      chunk.putInt(at + REVISION, v);
+    }
+
+    chunk.putInt(at + LEFT, left);
+    chunk.putInt(at + RIGHT, right);
+    chunk.putInt(at + SIZE, size << 1 | (red ? 1 : 0));
+
+    return x;
+  }
+
+  // `at` is NIL for a record appended to node x
+  private void journal(int x, int at, int left, int right, int size) {
+    if (!journaling) return;
+
+    if (changeCount + 5 > changes.length)
+      changes = Arrays.copyOf(changes, changes.length * 2);
+
+    changes[changeCount++] = x;
+    changes[changeCount++] = at;
+    changes[changeCount++] = left;
+    changes[changeCount++] = right;
+    changes[changeCount++] = size;
+  }
+
+  // undo every journaled write, newest first, and free the nodes allocated
+  // since there were `allocated` of them
+  private void rollback(int allocated) {
+    while (changeCount > 0) {
+      int size = changes[--changeCount];
+      int right = changes[--changeCount];
+      int left = changes[--changeCount];
+      int at = changes[--changeCount];
+      int x = changes[--changeCount];
+      ByteBuffer chunk = chunk(x);
+
+      if (at == NIL) {
+        chunk.putInt(offset(x) + COUNT, count(x) - 1);
+      } else {
+        chunk.putInt(at + LEFT, left);
+        chunk.putInt(at + RIGHT, right);
+        chunk.putInt(at + SIZE, size);
+      }
+    }
+
+    nodes = allocated;
+  }
+
+  /***************************************************************************
+   *  Root records.
+   ***************************************************************************/
+
+  // the position of the root record in force at `revision`, or -1 if there
+  // was no tree yet
+  private int readRevision(long revision) {
+    if (rootCount == 0) return -1;
+
+    // reads at the newest revision skip the binary search
+    if (revision >= rootRevisions[rootCount - 1]) return rootCount - 1;
+
+    int begin = 0;
+    int end = rootCount - 1;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      if (revision >= rootRevisions[mid])
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return end;
+  }
+
+  // the position the root record for a write at `revision` has, or will have
+  private int writeRevision(long revision) {
+    if (rootCount == 0) return 0;
+
+    long latest = rootRevisions[rootCount - 1];
+
+    if (revision < latest)
+      throw new IllegalArgumentException("revision precedes the latest revision");
+
+    return revision == latest ? rootCount - 1 : rootCount;
+  }
+
+  private int findRoot(int v) { return v < 0 ? NIL : roots[v]; }
+
+  private int latestRoot() { return rootCount == 0 ? NIL : roots[rootCount - 1]; }
+
+  private void setRoot(int v, long revision, int root) {
+    if (v == rootCount) {
+      if (rootCount == roots.length) {
+        roots = Arrays.copyOf(roots, rootCount * 2);
+        rootRevisions = Arrays.copyOf(rootRevisions, rootCount * 2);
+      }
+
+      rootRevisions[rootCount++] = revision;
+    }
+
+    roots[v] = root;
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   * @throws IllegalStateException if the set is closed
+   */
+  public int size(long revision) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+
+    return size(findRoot(v), v);
+  }
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  public int size() { return this.size; }
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   * @throws IllegalStateException if the set is closed
+   */
+  public boolean isEmpty(long revision) {
+    ensureOpen();
+
+    return findRoot(readRevision(revision)) == NIL;
+  }
+
+  /***************************************************************************
+   *  Standard BST search.
+   ***************************************************************************/
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no smaller element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code none} if there is none.
+   * @throws IllegalStateException if the set is closed
+   */
+  public long predecessor(long element, long revision, long none) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    long accumulator = none;
+
+    while (x != NIL) {
+      long current = element(x);
+
+      if (element <= current) {
+        x = left(x, v);
+      } else {
+        accumulator = current;
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no greater element
+   * @return the smallest element greater than {@code element}
+   *     and {@code none} if there is none.
+   * @throws IllegalStateException if the set is closed
+   */
+  public long successor(long element, long revision, long none) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    long accumulator = none;
+
+    while (x != NIL) {
+      long current = element(x);
+
+      if (element < current) {
+        accumulator = current;
+        x = left(x, v);
+      } else {
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code none} if there is none.
+   * @throws IllegalStateException if the set is closed
+   */
+  public long floor(long element, long revision, long none) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    long accumulator = none;
+
+    while (x != NIL) {
+      long current = element(x);
+
+      if (element < current) {
+        x = left(x, v);
+      } else {
+        accumulator = current;
+        if (element == current) break;
+        x = right(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code none} if there is none.
+   * @throws IllegalStateException if the set is closed
+   */
+  public long ceiling(long element, long revision, long none) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+    long accumulator = none;
+
+    while (x != NIL) {
+      long current = element(x);
+
+      if (element > current) {
+        x = right(x, v);
+      } else {
+        accumulator = current;
+        if (element == current) break;
+        x = left(x, v);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   * @throws IllegalStateException if the set is closed
+   */
+  public boolean contains(long element, long revision) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int x = findRoot(v);
+
+    while (x != NIL) {
+      long current = element(x);
+
+      if      (element < current) x = left(x, v);
+      else if (element > current) x = right(x, v);
+      else                        return true;
+    }
+
+    return false;
+  }
+
+  /***************************************************************************
+   *  Red-black tree insertion.
+   ***************************************************************************/
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   * @throws IllegalStateException if the set is closed
+   */
+  public boolean add(long element, long revision) {
+    ensureOpen();
+
+    int v = writeRevision(revision);
+    int root = latestRoot();
+
+    if (root == NIL) {
+      root = newNode(element, v, false);
+    } else {
+      root = add(root, element, v);
+
+      if (root == NIL) return false;
+
+      root = setColor(root, v, false);
+    }
+
+    setRoot(v, revision, root);
+
+    this.size++;
+
+    return true;
+  }
+
+  // returns the new root of the subtree, or NIL if the element is already in
+  // the subtree, in which case no set records have been written
+  private int add(int h, long element, int v) {
+    if (h == NIL) return newNode(element, v, true);
+
+    long current = element(h);
+
+    if (element == current) return NIL;
+
+    int child;
+
+    if (element < current) {
+      child = add(left(h, v), element, v);
+      if (child == NIL) return NIL;
+      h = setLeft(h, v, child);
+    } else {
+      child = add(right(h, v), element, v);
+      if (child == NIL) return NIL;
+      h = setRight(h, v, child);
+    }
+
+    // fix-up any right-leaning links
+    if (isRed(right(h, v), v) && !isRed(left(h, v), v))
+      h = rotateLeft(h, v);
+    if (isRed(left(h, v), v) && isRed(left(left(h, v), v), v))
+      h = rotateRight(h, v);
+    if (isRed(left(h, v), v) && isRed(right(h, v), v))
+      h = flipColors(h, v);
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Red-black tree deletion.
+   ***************************************************************************/
+
+  // useful because this is a left-leaning tree
+  private int deleteMin(int h, int v) {
+    int left = left(h, v);
+
+    if (left == NIL)
+      return NIL;
+
+    if (!isRed(left, v) && !isRed(left(left, v), v))
+      h = moveRedLeft(h, v);
+
+    h = setLeft(h, v, deleteMin(left(h, v), v));
+    return balance(h, v);
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses is not much cheaper than one that hits: the tree is
+   * rebalanced on the way down before the element is known to be missing,
+   * and every change is then undone. Callers that expect many misses should
+   * check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   * @throws IllegalStateException if the set is closed
+   */
+  public boolean remove(long element, long revision) {
+    ensureOpen();
+
+    int v = writeRevision(revision);
+    int root = latestRoot();
+
+    if (root == NIL) return false;
+
+    int allocated = nodes;
+
+    changeCount = 0;
+    journaling = true;
+    removed = false;
+
+    try {
+      // if both children of root are black, set root to red
+      if (!isRed(left(root, v), v) && !isRed(right(root, v), v))
+        root = setColor(root, v, true);
+
+      root = remove(root, element, v);
+
+      if (!removed) {
+        rollback(allocated);
+        return false;
+      }
+    } finally {
+      journaling = false;
+      changeCount = 0;
+    }
+
+    if (root != NIL) root = setColor(root, v, false);
+
+    setRoot(v, revision, root);
+
+    this.size--;
+
+    return true;
+  }
+
+  // sets `removed` if the element was found; otherwise the returned subtree is
+  // meaningless and the journaled writes must be rolled back
+  private int remove(int h, long element, int v) {
+    if (element < element(h))  {
+      int left = left(h, v);
+
+      // fell off the tree: the element is not in the set
+      if (left == NIL) return h;
+
+      if (!isRed(left, v) && !isRed(left(left, v), v))
+        h = moveRedLeft(h, v);
+
+      left = remove(left(h, v), element, v);
+
+      if (!removed) return h;
+
+      h = setLeft(h, v, left);
+
+    } else {
+
+      if (isRed(left(h, v), v))
+        h = rotateRight(h, v);
+
+      int right = right(h, v);
+
+      if (element == element(h) && right == NIL) {
+        removed = true;
+        return NIL;
+      }
+
+      if (right == NIL) return h;
+
+      if (!isRed(right, v) && !isRed(left(right, v), v))
+        h = moveRedRight(h, v);
+
+      right = right(h, v);
+
+      // you've found the node you're looking for
+      if (element == element(h)) {
+        removed = true;
+
+        int left = left(h, v);
+        boolean red = isRed(h, v);
+
+        // right min is the new root
+        int rightMin = min(right, v);
+        int rightSubtree = deleteMin(right, v);
+
+        // the successor takes over the position, and so the color, of `h`
+        h = update(rightMin, v, left, rightSubtree, red);
+      } else {
+        right = remove(right, element, v);
+
+        if (!removed) return h;
+
+        h = setRight(h, v, right);
+      }
+    }
+    return balance(h, v);
+  }
+
+  /***************************************************************************
+   *  Red-black tree helper functions.
+   ***************************************************************************/
+
+  // make a left-leaning link lean to the right
+  private int rotateRight(int h, int v) {
+    int at = findRevision(h, v);
+    int left = chunk(h).getInt(at + LEFT), right = chunk(h).getInt(at + RIGHT);
+    boolean red = (chunk(h).getInt(at + SIZE) & 1) == 1;
+
+    at = findRevision(left, v);
+    int leftLeft = chunk(left).getInt(at + LEFT);
+    int leftRight = chunk(left).getInt(at + RIGHT);
+
+    h = update(h, v, leftRight, right, true);
+
+    // note that `left` is now the root of the subtree because of the rotation
+    return update(left, v, leftLeft, h, red);
+  }
+
+  // make a right-leaning link lean to the left
+  private int rotateLeft(int h, int v) {
+    int at = findRevision(h, v);
+    int left = chunk(h).getInt(at + LEFT), right = chunk(h).getInt(at + RIGHT);
+    boolean red = (chunk(h).getInt(at + SIZE) & 1) == 1;
+
+    at = findRevision(right, v);
+    int rightLeft = chunk(right).getInt(at + LEFT);
+    int rightRight = chunk(right).getInt(at + RIGHT);
+
+    h = update(h, v, left, rightLeft, true);
+
+    // note that `right` is now the root of the subtree because of the rotation
+    return update(right, v, h, rightRight, red);
+  }
+
+  // flip the colors of a node and its two children, returning the node now in
+  // the place of `h`
+  private int flipColors(int h, int v) {
+    int at = findRevision(h, v);
+    int left = chunk(h).getInt(at + LEFT), right = chunk(h).getInt(at + RIGHT);
+    boolean red = (chunk(h).getInt(at + SIZE) & 1) == 1;
+
+    left = setColor(left, v, !isRed(left, v));
+    right = setColor(right, v, !isRed(right, v));
+
+    return update(h, v, left, right, !red);
+  }
+
+  // Assuming that h is red and both h.left and h.left.left are black, make
+  // h.left or one of its children red.
+  private int moveRedLeft(int h, int v) {
+    h = flipColors(h, v);
+
+    int right = right(h, v);
+
+    if (isRed(left(right, v), v)) {
+      h = setRight(h, v, rotateRight(right, v));
+      h = rotateLeft(h, v);
+      h = flipColors(h, v);
+    }
+
+    return h;
+  }
+
+  // Assuming that h is red and both h.right and h.right.left are black, make
+  // h.right or one of its children red.
+  private int moveRedRight(int h, int v) {
+    h = flipColors(h, v);
+
+    if (isRed(left(left(h, v), v), v)) {
+      h = rotateRight(h, v);
+      h = flipColors(h, v);
+    }
+
+    return h;
+  }
+
+  // restore red-black tree invariant
+  private int balance(int h, int v) {
+    if (isRed(right(h, v), v))
+      h = rotateLeft(h, v);
+
+    if (isRed(left(h, v), v) && isRed(left(left(h, v), v), v))
+      h = rotateRight(h, v);
+
+    if (isRed(left(h, v), v) && isRed(right(h, v), v))
+      h = flipColors(h, v);
+
+    return h;
+  }
+
+  private int min(int x, int v) {
+    for (int left = left(x, v); left != NIL; left = left(x, v))
+      x = left;
+
+    return x;
+  }
+
+  /***************************************************************************
+   *  Check integrity of red-black tree data structure.
+   ***************************************************************************/
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   * @throws IllegalStateException if the set is closed
+   */
+  public boolean check() {
+    ensureOpen();
+
+    for (int v = 0; v < rootCount; v++)
+      if (!check(findRoot(v), v)) return false;
+
+    return true;
+  }
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree.
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   * @throws IllegalStateException if the set is closed
+   * @see PersistentSet#check(Object)
+   */
+  public boolean check(long revision) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+
+    return check(findRoot(v), v);
+  }
+
+  private boolean check(int root, int v) {
+    return !isRed(root, v) &&
+      isBST(root, NIL, NIL, v) &&
+      isSizeConsistent(root, v) &&
+      is23(root, v) &&
+      isBalanced(root, v);
+  }
+
+  // is the tree rooted at x a BST with all elements strictly between the
+  // elements of min and max (if min or max is NIL, treat as empty constraint)?
+  private boolean isBST(int x, int min, int max, int v) {
+    if (x == NIL) return true;
+    if (min != NIL && element(x) <= element(min)) return false;
+    if (max != NIL && element(x) >= element(max)) return false;
+
+    return isBST(left(x, v), min, x, v) && isBST(right(x, v), x, max, v);
+  }
+
+  // are the size fields correct?
+  private boolean isSizeConsistent(int x, int v) {
+    if (x == NIL) return true;
+
+    int left = left(x, v), right = right(x, v);
+
+    if (size(x, v) != size(left, v) + size(right, v) + 1) return false;
+
+    return isSizeConsistent(left, v) && isSizeConsistent(right, v);
+  }
+
+  // does the tree have no red right links, and at most one (left) red link
+  // in a row on any path?
+  private boolean is23(int x, int v) {
+    if (x == NIL) return true;
+
+    int left = left(x, v), right = right(x, v);
+
+    if (isRed(right, v)) return false;
+    if (isRed(x, v) && isRed(left, v)) return false;
+
+    return is23(left, v) && is23(right, v);
+  }
+
+  // do all paths from root to leaf have same number of black edges?
+  private boolean isBalanced(int root, int v) {
+    // number of black links on path from root to min
+    int black = 0;
+
+    for (int x = root; x != NIL; x = left(x, v))
+      if (!isRed(x, v)) black++;
+
+    return isBalanced(root, black, v);
+  }
+
+  // does every path from the root to a leaf have the given number of black
+  // links?
+  private boolean isBalanced(int x, int black, int v) {
+    if (x == NIL) return black == 0;
+
+    if (!isRed(x, v)) black--;
+
+    return isBalanced(left(x, v), black, v) && isBalanced(right(x, v), black, v);
+  }
+
+  /**
+   * Stringifies the set for the specified revision.
+   *
+   * @param revision the revision to stringify
+   * @return a string version of the tree in the recursive form of
+   * (root left-tree right-tree).
+   * @throws IllegalStateException if the set is closed
+   */
+  public String toString (long revision) {
+    ensureOpen();
+
+    int v = readRevision(revision);
+    int root = findRoot(v);
+
+    return root == NIL ?
+      "No tree exists at revision " + revision : toString(root, v);
+  }
+
+  private String toString (int x, int v) {
+    if (x == NIL) return "()";
+
+    // the element
+    return "({" + element(x) + ":" +
+      // the color
+      (isRed(x, v) ? "red" : "black") + "} " +
+      // the left
+      toString(left(x, v), v) + " " +
+      // the right
+      toString(right(x, v), v) + ")";
+  }
+}
@@ -0,0 +1,677 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * A Persistent Left Leaning RedBlack Tree made persistent by path copying.
+ *
+ * The same tree as {@link PersistentSet}, but rather than recording each
+ * change to a node in that node, nodes are immutable: a write copies every
+ * node on the path from the root to the nodes it changes, and each revision
+ * keeps the root of its own copy. A node's children and color are plain
+ * fields, so a read at any revision follows them without searching for the
+ * record in force, at the cost of O(log n) new nodes per write.
+ *
+ * Unlike {@link PersistentSet}, writing at a revision earlier than the latest
+ * one is rejected rather than assumed away.
+ *
+ * @author Robert Sedgewick
+ * @author Kevin Wayne
+ * @author Michael Davis
+ */
+
+public class PathCopyingPersistentSet<E, R> implements RevisionedSet<E, R> {
+
+  // BST helper node data type; never changed once made
+  private static class Node<E> {
+    public final E element;
+    public final Node<E> left, right;
+    public final boolean red;
+    public final int size;
+
+    public Node (E element, Node<E> left, Node<E> right, boolean red) {
+      this.element = element;
+      this.left = left;
+      this.right = right;
+      this.red = red;
+      this.size = size(left) + size(right) + 1;
+    }
+  }
+
+  private final Comparator<? super E> elementComparator;
+  private final Comparator<? super R> revisionComparator;
+
+  // root records: the tree at rootRevisions.get(v) is rooted at roots.get(v)
+  private ArrayList<R> rootRevisions = new ArrayList<R>();
+  private ArrayList<Node<E>> roots = new ArrayList<Node<E>>();
+
+  private int size = 0;
+
+  // set by the deletion when it finds the element; until then the copies it
+  // has made are discarded on the way back up
+  private boolean removed;
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by their
+   * natural ordering.
+   *
+   * @throws ClassCastException on the first comparison if {@code E} or
+   *     {@code R} does not implement {@code java.lang.Comparable}
+   */
+  public PathCopyingPersistentSet() {
+    this(PersistentSet.NaturalOrder.INSTANCE, PersistentSet.NaturalOrder.INSTANCE);
+  }
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by the given
+   * comparators.
+   *
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @throws IllegalArgumentException if either comparator is {@code null}
+   */
+  public PathCopyingPersistentSet(Comparator<? super E> elementComparator,
+                                  Comparator<? super R> revisionComparator) {
+    if (elementComparator == null || revisionComparator == null)
+      throw new IllegalArgumentException("comparator is null");
+
+    this.elementComparator = elementComparator;
+    this.revisionComparator = revisionComparator;
+  }
+
+  /***************************************************************************
+   *  Node helper methods.
+   ***************************************************************************/
+
+  private static boolean isRed(Node<?> x) {
+    return x == null ? false : x.red;
+  }
+
+  // number of node in subtree rooted at x; 0 if x is null
+  private static int size(Node<?> x) {
+    return x == null ? 0 : x.size;
+  }
+
+  private Node<E> setLeft(Node<E> h, Node<E> left) {
+    return new Node<E>(h.element, left, h.right, h.red);
+  }
+
+  private Node<E> setRight(Node<E> h, Node<E> right) {
+    return new Node<E>(h.element, h.left, right, h.red);
+  }
+
+  private Node<E> setColor(Node<E> h, boolean red) {
+    return h.red == red ? h : new Node<E>(h.element, h.left, h.right, red);
+  }
+
+  /***************************************************************************
+   *  Root records.
+   ***************************************************************************/
+
+  // the root of the tree in force at `revision`, or null if there was no
+  // tree yet
+  private Node<E> findRoot(R revision) {
+    int last = roots.size() - 1;
+
+    if (last < 0) return null;
+
+    // reads at the newest revision skip the binary search
+    if (revisionComparator.compare(revision, rootRevisions.get(last)) >= 0)
+      return roots.get(last);
+
+    int begin = 0;
+    int end = last;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      if (revisionComparator.compare(revision, rootRevisions.get(mid)) >= 0)
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return end < 0 ? null : roots.get(end);
+  }
+
+  // the root of the latest revision, which every write starts from
+  private Node<E> latestRoot(R revision) {
+    int last = roots.size() - 1;
+
+    if (last < 0) return null;
+
+    if (revisionComparator.compare(revision, rootRevisions.get(last)) < 0)
+      throw new IllegalArgumentException("revision precedes the latest revision");
+
+    return roots.get(last);
+  }
+
+  private void setRoot(R revision, Node<E> root) {
+    // will replace the existing entry at `revision`; revisions are
+    // non-decreasing, so that entry can only be the last one
+    int last = roots.size() - 1;
+
+    if (last < 0 || revisionComparator.compare(rootRevisions.get(last), revision) != 0) {
+      rootRevisions.add(revision);
+      roots.add(root);
+    } else {
+      roots.set(last, root);
+    }
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   */
+  public int size(R revision) { return size(findRoot(revision)); }
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  public int size() { return this.size; }
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   */
+  public boolean isEmpty(R revision) { return findRoot(revision) == null; }
+
+  /***************************************************************************
+   *  Standard BST search.
+   ***************************************************************************/
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E predecessor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to predecessor() is null");
+
+    E accumulator = null;
+
+    for (Node<E> x = findRoot(revision); x != null; ) {
+      if (elementComparator.compare(element, x.element) <= 0) {
+        x = x.left;
+      } else {
+        accumulator = x.element;
+        x = x.right;
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E successor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to successor() is null");
+
+    E accumulator = null;
+
+    for (Node<E> x = findRoot(revision); x != null; ) {
+      if (elementComparator.compare(element, x.element) < 0) {
+        accumulator = x.element;
+        x = x.left;
+      } else {
+        x = x.right;
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E floor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to floor() is null");
+
+    E accumulator = null;
+
+    for (Node<E> x = findRoot(revision); x != null; ) {
+      int cmp = elementComparator.compare(element, x.element);
+
+      if (cmp < 0) {
+        x = x.left;
+      } else {
+        accumulator = x.element;
+        if (cmp == 0) break;
+        x = x.right;
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E ceiling(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to ceiling() is null");
+
+    E accumulator = null;
+
+    for (Node<E> x = findRoot(revision); x != null; ) {
+      int cmp = elementComparator.compare(element, x.element);
+
+      if (cmp > 0) {
+        x = x.right;
+      } else {
+        accumulator = x.element;
+        if (cmp == 0) break;
+        x = x.left;
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   */
+  public boolean contains(E element, R revision) {
+    Node<E> x = findRoot(revision);
+
+    while (x != null) {
+      int cmp = elementComparator.compare(element, x.element);
+      if      (cmp < 0) x = x.left;
+      else if (cmp > 0) x = x.right;
+      else              return true;
+    }
+
+    return false;
+  }
+
+  /***************************************************************************
+   *  Red-black tree insertion.
+   ***************************************************************************/
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean add(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to add() is null");
+
+    Node<E> root = add(latestRoot(revision), element);
+
+    if (root == null) return false;
+
+    setRoot(revision, setColor(root, false));
+
+    this.size++;
+
+    return true;
+  }
+
+  // returns the new root of the subtree, or null if the element is already in
+  // the subtree, in which case nothing has been copied
+  private Node<E> add(Node<E> h, E element) {
+    if (h == null) return new Node<E>(element, null, null, true);
+
+    int cmp = elementComparator.compare(element, h.element);
+
+    if (cmp == 0) return null;
+
+    Node<E> child;
+
+    if (cmp < 0) {
+      child = add(h.left, element);
+      if (child == null) return null;
+      h = setLeft(h, child);
+    } else {
+      child = add(h.right, element);
+      if (child == null) return null;
+      h = setRight(h, child);
+    }
+
+    // fix-up any right-leaning links
+    if (isRed(h.right) && !isRed(h.left))     h = rotateLeft(h);
+    if (isRed(h.left)  &&  isRed(h.left.left)) h = rotateRight(h);
+    if (isRed(h.left)  &&  isRed(h.right))     h = flipColors(h);
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Red-black tree deletion.
+   ***************************************************************************/
+
+  // useful because this is a left-leaning tree
+  private Node<E> deleteMin(Node<E> h) {
+    if (h.left == null)
+      return null;
+
+    if (!isRed(h.left) && !isRed(h.left.left))
+      h = moveRedLeft(h);
+
+    h = setLeft(h, deleteMin(h.left));
+    return balance(h);
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses still copies the path down to where the element
+   * would be, and then drops the copies. Callers that expect many misses
+   * should check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean remove(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to remove() is null");
+
+    Node<E> root = latestRoot(revision);
+
+    if (root == null) return false;
+
+    // if both children of root are black, set root to red
+    if (!isRed(root.left) && !isRed(root.right))
+      root = setColor(root, true);
+
+    removed = false;
+    root = remove(root, element);
+
+    // the copies are unreachable from any root, so there is nothing to undo
+    if (!removed) return false;
+
+    setRoot(revision, root == null ? null : setColor(root, false));
+
+    this.size--;
+
+    return true;
+  }
+
+  // sets `removed` if the element was found; otherwise the returned subtree is
+  // meaningless and must be discarded
+  private Node<E> remove(Node<E> h, E element) {
+    if (elementComparator.compare(element, h.element) < 0)  {
+      // fell off the tree: the element is not in the set
+      if (h.left == null) return h;
+
+      if (!isRed(h.left) && !isRed(h.left.left))
+        h = moveRedLeft(h);
+
+      Node<E> left = remove(h.left, element);
+
+      if (!removed) return h;
+
+      h = setLeft(h, left);
+
+    } else {
+
+      if (isRed(h.left))
+        h = rotateRight(h);
+
+      if (elementComparator.compare(element, h.element) == 0 && h.right == null) {
+        removed = true;
+        return null;
+      }
+
+      if (h.right == null) return h;
+
+      if (!isRed(h.right) && !isRed(h.right.left))
+        h = moveRedRight(h);
+
+      // you've found the node you're looking for
+      if (elementComparator.compare(element, h.element) == 0) {
+        removed = true;
+
+        // the successor takes over the position, and so the color, of `h`
+        Node<E> rightMin = min(h.right);
+        h = new Node<E>(rightMin.element, h.left, deleteMin(h.right), h.red);
+      } else {
+        Node<E> right = remove(h.right, element);
+
+        if (!removed) return h;
+
+        h = setRight(h, right);
+      }
+    }
+    return balance(h);
+  }
+
+  /***************************************************************************
+   *  Red-black tree helper functions.
+   ***************************************************************************/
+
+  // make a left-leaning link lean to the right
+  private Node<E> rotateRight(Node<E> h) {
+    Node<E> x = h.left;
+    boolean red = h.red;
+
+    h = new Node<E>(h.element, x.right, h.right, true);
+
+    // note that `x` is now the root of the subtree because of the rotation
+    return new Node<E>(x.element, x.left, h, red);
+  }
+
+  // make a right-leaning link lean to the left
+  private Node<E> rotateLeft(Node<E> h) {
+    Node<E> x = h.right;
+    boolean red = h.red;
+
+    h = new Node<E>(h.element, h.left, x.left, true);
+
+    // note that `x` is now the root of the subtree because of the rotation
+    return new Node<E>(x.element, h, x.right, red);
+  }
+
+  // flip the colors of a node and its two children
+  private Node<E> flipColors(Node<E> h) {
+    return new Node<E>(h.element,
+        setColor(h.left, !h.left.red), setColor(h.right, !h.right.red), !h.red);
+  }
+
+  // Assuming that h is red and both h.left and h.left.left are black, make
+  // h.left or one of its children red.
+  private Node<E> moveRedLeft(Node<E> h) {
+    h = flipColors(h);
+
+    if (isRed(h.right.left)) {
+      h = setRight(h, rotateRight(h.right));
+      h = rotateLeft(h);
+      h = flipColors(h);
+    }
+
+    return h;
+  }
+
+  // Assuming that h is red and both h.right and h.right.left are black, make
+  // h.right or one of its children red.
+  private Node<E> moveRedRight(Node<E> h) {
+    h = flipColors(h);
+
+    if (isRed(h.left.left)) {
+      h = rotateRight(h);
+      h = flipColors(h);
+    }
+
+    return h;
+  }
+
+  // restore red-black tree invariant
+  private Node<E> balance(Node<E> h) {
+    if (isRed(h.right))                      h = rotateLeft(h);
+    if (isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
+    if (isRed(h.left) && isRed(h.right))     h = flipColors(h);
+
+    return h;
+  }
+
+  private Node<E> min(Node<E> x) {
+    while (x.left != null) x = x.left;
+
+    return x;
+  }
+
+  /***************************************************************************
+   *  Check integrity of red-black tree data structure.
+   ***************************************************************************/
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  public boolean check() {
+    for (Node<E> root : roots)
+      if (!check(root)) return false;
+
+    return true;
+  }
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree.
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   * @see PersistentSet#check(Object)
+   */
+  public boolean check(R revision) { return check(findRoot(revision)); }
+
+  private boolean check(Node<E> root) {
+    return !isRed(root) &&
+      isBST(root, null, null) &&
+      isSizeConsistent(root) &&
+      is23(root) &&
+      isBalanced(root);
+  }
+
+  // is the tree rooted at x a BST with all elements strictly between min and
+  // max (if min or max is null, treat as empty constraint)?
+  private boolean isBST(Node<E> x, E min, E max) {
+    if (x == null) return true;
+    if (min != null && elementComparator.compare(x.element, min) <= 0) return false;
+    if (max != null && elementComparator.compare(x.element, max) >= 0) return false;
+
+    return isBST(x.left, min, x.element) && isBST(x.right, x.element, max);
+  }
+
+  // are the size fields correct?
+  private boolean isSizeConsistent(Node<E> x) {
+    if (x == null) return true;
+    if (x.size != size(x.left) + size(x.right) + 1) return false;
+
+    return isSizeConsistent(x.left) && isSizeConsistent(x.right);
+  }
+
+  // does the tree have no red right links, and at most one (left) red link
+  // in a row on any path?
+  private boolean is23(Node<E> x) {
+    if (x == null) return true;
+    if (isRed(x.right)) return false;
+    if (isRed(x) && isRed(x.left)) return false;
+
+    return is23(x.left) && is23(x.right);
+  }
+
+  // do all paths from root to leaf have same number of black edges?
+  private boolean isBalanced(Node<E> root) {
+    // number of black links on path from root to min
+    int black = 0;
+
+    for (Node<E> x = root; x != null; x = x.left)
+      if (!isRed(x)) black++;
+
+    return isBalanced(root, black);
+  }
+
+  // does every path from the root to a leaf have the given number of black
+  // links?
+  private boolean isBalanced(Node<E> x, int black) {
+    if (x == null) return black == 0;
+
+    if (!isRed(x)) black--;
+
+    return isBalanced(x.left, black) && isBalanced(x.right, black);
+  }
+
+  /**
+   * Stringifies the set for all revisions.
+   *
+   * @return a string version of the tree with newlines for each revision
+   */
+  public String toString () {
+    StringBuilder str = new StringBuilder();
+
+    for (int v = 0; v < roots.size(); v++)
+      str.append("revision ").append(rootRevisions.get(v)).append(": ")
+        .append(toString(rootRevisions.get(v))).append("\n");
+
+    return str.toString();
+  }
+
+  /**
+   * Stringifies the set for the specified revision.
+   *
+   * @param revision the revision to stringify
+   * @return a string version of the tree in the recursive form of
+   * (root left-tree right-tree).
+   */
+  public String toString (R revision) {
+    Node<E> root = findRoot(revision);
+
+    return root == null ?
+      "No tree exists at revision " + revision : toString(root);
+  }
+
+  private String toString (Node<E> x) {
+    if (x == null) return "()";
+
+    // the element
+    return "({" + x.element + ":" +
+      // the color
+      (x.red ? "red" : "black") + "} " +
+      // the left
+      toString(x.left) + " " +
+      // the right
+      toString(x.right) + ")";
+  }
+}
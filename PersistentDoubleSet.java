@@ -0,0 +1,172 @@
+/**
+ * A Persistent Left Leaning RedBlack Tree of {@code double} elements at
+ * {@code double} revisions.
+ *
+ * Elements and revisions are ordered as by {@link Double#compare}: {@code
+ * -0.0} is smaller than {@code 0.0}, and every {@code NaN} is the same
+ * element, greater than positive infinity. Each {@code double} is mapped to a
+ * {@code long} with that same ordering and stored in a {@link
+ * PersistentLongSet}, so nothing is boxed. This set assumes that the tree is
+ * built with non-decreasing revisions.
+ *
+ * Writing at a revision earlier than the latest one is rejected.
+ *
+ * @author Michael Davis
+ */
+
+public class PersistentDoubleSet {
+
+  // never the key of a double, since doubleToLongBits folds every NaN into
+  // 0x7ff8000000000000L
+  private static final long NONE = Long.MAX_VALUE;
+
+  private PersistentLongSet set;
+
+  /**
+   * Initializes an empty set.
+   */
+  public PersistentDoubleSet() { set = new PersistentLongSet(); }
+
+  // flips the magnitude bits of negative doubles, so that comparing the keys
+  // as signed longs agrees with Double.compare
+  private static long key(double value) {
+    long bits = Double.doubleToLongBits(value);
+
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  // the inverse of `key`
+  private static double value(long key) {
+    return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   */
+  public int size(double revision) { return set.size(key(revision)); }
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  public int size() { return set.size(); }
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   */
+  public boolean isEmpty(double revision) { return set.isEmpty(key(revision)); }
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no smaller element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public double predecessor(double element, double revision, double none) {
+    long found = set.predecessor(key(element), key(revision), NONE);
+
+    return found == NONE ? none : value(found);
+  }
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no greater element
+   * @return the smallest element greater than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public double successor(double element, double revision, double none) {
+    long found = set.successor(key(element), key(revision), NONE);
+
+    return found == NONE ? none : value(found);
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public double floor(double element, double revision, double none) {
+    long found = set.floor(key(element), key(revision), NONE);
+
+    return found == NONE ? none : value(found);
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public double ceiling(double element, double revision, double none) {
+    long found = set.ceiling(key(element), key(revision), NONE);
+
+    return found == NONE ? none : value(found);
+  }
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   */
+  public boolean contains(double element, double revision) {
+    return set.contains(key(element), key(revision));
+  }
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   */
+  public boolean add(double element, double revision) {
+    return set.add(key(element), key(revision));
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses is not much cheaper than one that hits: the tree is
+   * rebalanced on the way down before the element is known to be missing,
+   * and every change is then undone. Callers that expect many misses should
+   * check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   */
+  public boolean remove(double element, double revision) {
+    return set.remove(key(element), key(revision));
+  }
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  public boolean check() { return set.check(); }
+}
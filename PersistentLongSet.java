@@ -0,0 +1,896 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Persistent Left Leaning RedBlack Tree of {@code long} elements at
+ * {@code long} revisions.
+ *
+ * The same tree as {@link PersistentSet}, specialized so that elements and
+ * revisions are stored unboxed in the nodes and set records and compared
+ * with the primitive operators. This set assumes that the tree is built with
+ * non-decreasing revisions.
+ *
+ * Writing at a revision earlier than the latest one is rejected.
+ *
+ * @author Robert Sedgewick
+ * @author Kevin Wayne
+ * @author Michael Davis
+ */
+
+public class PersistentLongSet {
+
+  private enum Color { RED, BLACK }
+
+  // saves the 'state' of a node at a revision
+  private class SetRecord {
+    public long revision;
+    public Node left, right;
+    public Color color;
+    public int size;
+
+    public SetRecord (long revision, Node left, Node right, Color color, int size) {
+      this.revision = revision;
+      this.left = left;
+      this.right = right;
+      this.color = color;
+      this.size = size;
+    }
+  }
+
+  // BST helper node data type
+  private class Node {
+    private static final int MAX_RECORD_CHANGES = 5;
+
+    public long element;
+    private List<SetRecord> setRecords;
+
+    public Node (long element) {
+      this.element = element;
+      this.setRecords = new ArrayList<SetRecord>(MAX_RECORD_CHANGES);
+    }
+
+    public Node (long revision, long element, Color color, int size) {
+      this(element);
+      this.setRecords.add(new SetRecord(revision, null, null, color, size));
+    }
+
+    public String toString (long revision) { return toString(revision, this); }
+
+    private String toString (long revision, Node node) {
+      if (node == null) return "()";
+
+      SetRecord record = node.findRevision(revision);
+
+      // the element
+      return "({" + node.element + ":" +
+        // the color
+        (record.color == Color.RED ? "red" : "black") + "} " +
+        // the left
+        toString(revision, record.left) + " " +
+        // the right
+        toString(revision, record.right) + ")";
+    }
+
+    public Node getLeft (long revision) { return findRevision(revision).left; }
+
+    public Node getRight (long revision) { return findRevision(revision).right; }
+
+    public int getSize (long revision) { return findRevision(revision).size; }
+
+    // the record in force at `revision`: the latest one made at or before it
+    public SetRecord findRevision (long revision) {
+      SetRecord last = setRecords.get(setRecords.size() - 1);
+
+      // reads and writes at the newest revision skip the binary search
+      if (revision >= last.revision) return last;
+
+      int index = recordIndex(revision);
+
+      if (index < 0) index = Math.max(-index - 2, 0);
+
+      return setRecords.get(index);
+    }
+
+    private int recordIndex (long revision) {
+      int begin = 0;
+      int end = setRecords.size() - 1;
+
+      while (begin <= end) {
+        int mid = (begin + end) >>> 1;
+        long current = setRecords.get(mid).revision;
+        if (revision == current)
+          return mid;
+        else if (revision > current)
+          begin = mid + 1;
+        else
+          end = mid - 1;
+      }
+
+      return -begin - 1;
+    }
+
+    public Node setLeft(long revision, Node left) {
+      SetRecord current = setRecords.get(setRecords.size() - 1);
+
+      return update(revision, left, current.right, current.color);
+    }
+
+    public Node setRight(long revision, Node right) {
+      SetRecord current = setRecords.get(setRecords.size() - 1);
+
+      return update(revision, current.left, right, current.color);
+    }
+
+    public Node setColor(long revision, Color color) {
+      SetRecord current = setRecords.get(setRecords.size() - 1);
+
+      return update(revision, current.left, current.right, color);
+    }
+
+    // records the whole state of the node at `revision`; returns the node
+    // holding the new record, which is a copy if this one is full
+    public Node update(long revision, Node left, Node right, Color color) {
+      Node node = whichNode(revision);
+
+      SetRecord change =
+        new SetRecord(revision, left, right, color, size(left, right, revision));
+
+      node.setRecord(revision, change);
+
+      return node;
+    }
+
+    private Node whichNode(long revision) {
+      SetRecord last = setRecords.get(setRecords.size() - 1);
+
+      // if we've maxed out this node, allocate a new one, unless the change
+      // only replaces the record already made at `revision`
+      if (setRecords.size() >= MAX_RECORD_CHANGES && last.revision != revision)
+        return new Node(this.element);
+
+      return this;
+    }
+
+    private int size(Node left, Node right, long revision) {
+      int leftSize = left == null ? 0 : left.getSize(revision);
+      int rightSize = right == null ? 0 : right.getSize(revision);
+      // +1 because of the parent of left & right
+      return leftSize + rightSize + 1;
+    }
+
+    private void setRecord (long revision, SetRecord record) {
+      // will replace the existing entry at `revision`; revisions are
+      // non-decreasing, so that entry can only be the last one
+      int index = setRecords.size() - 1;
+
+      if (index < 0 || setRecords.get(index).revision != revision) {
+        journal(this, setRecords.size(), null);
+        setRecords.add(record);
+      } else {
+        journal(this, index, setRecords.get(index));
+        setRecords.set(index, record);
+      }
+    }
+  }
+
+  // a set record written while removing an element
+  private class Change {
+    public Node node;
+    // the replaced record, or null if the record at `index` was appended
+    public SetRecord record;
+    public int index;
+
+    public Change (Node node, int index, SetRecord record) {
+      this.node = node;
+      this.index = index;
+      this.record = record;
+    }
+  }
+
+  // saves the root of the tree at a revision
+  private class RootRecord {
+    public long revision;
+    public Node root;
+
+    public RootRecord (long revision, Node root) {
+      this.revision = revision;
+      this.root = root;
+    }
+  }
+
+  private ArrayList<RootRecord> rootRecords;
+  private int size = 0;
+
+  // the top-down deletion restructures the tree before it knows whether the
+  // element is there at all, so its writes are journaled and rolled back when
+  // the element turns out to be absent
+  private ArrayList<Change> changes = new ArrayList<Change>();
+  private boolean journaling = false;
+  private boolean removed;
+
+  /**
+   * Initializes an empty set.
+   */
+  public PersistentLongSet() { rootRecords = new ArrayList<RootRecord>(); }
+
+  /***************************************************************************
+   *  Node helper methods.
+   ***************************************************************************/
+
+  private boolean isRed(Node x, long revision) {
+    return x == null ? false : x.findRevision(revision).color == Color.RED;
+  }
+
+  private void journal(Node x, int index, SetRecord record) {
+    if (journaling) changes.add(new Change(x, index, record));
+  }
+
+  // undo every journaled write, newest first
+  private void rollback() {
+    for (int i = changes.size() - 1; i >= 0; i--) {
+      Change change = changes.get(i);
+
+      if (change.record == null)
+        change.node.setRecords.remove(change.index);
+      else
+        change.node.setRecords.set(change.index, change.record);
+    }
+  }
+
+  // number of node in subtree rooted at x; 0 if x is null
+  private int size(Node x, long revision) {
+    return x == null ? 0 : x.getSize(revision);
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   */
+  public int size(long revision) {
+    return size(findRoot(revision), revision);
+  }
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  public int size() { return this.size; }
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   */
+  public boolean isEmpty(long revision) {
+    return findRoot(revision) == null;
+  }
+
+  /***************************************************************************
+   *  Standard BST search.
+   ***************************************************************************/
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no smaller element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public long predecessor(long element, long revision, long none) {
+    Node x = findRoot(revision);
+    long accumulator = none;
+
+    while (x != null) {
+      if (element <= x.element) {
+        x = x.getLeft(revision);
+      } else {
+        accumulator = x.element;
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no greater element
+   * @return the smallest element greater than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public long successor(long element, long revision, long none) {
+    Node x = findRoot(revision);
+    long accumulator = none;
+
+    while (x != null) {
+      if (element < x.element) {
+        accumulator = x.element;
+        x = x.getLeft(revision);
+      } else {
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public long floor(long element, long revision, long none) {
+    Node x = findRoot(revision);
+    long accumulator = none;
+
+    while (x != null) {
+      if (element < x.element) {
+        x = x.getLeft(revision);
+      } else {
+        accumulator = x.element;
+        if (element == x.element) break;
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @param none the value to return if there is no such element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code none} if there is none.
+   */
+  public long ceiling(long element, long revision, long none) {
+    Node x = findRoot(revision);
+    long accumulator = none;
+
+    while (x != null) {
+      if (element > x.element) {
+        x = x.getRight(revision);
+      } else {
+        accumulator = x.element;
+        if (element == x.element) break;
+        x = x.getLeft(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   */
+  public boolean contains(long element, long revision) {
+    Node x = findRoot(revision);
+
+    while (x != null) {
+      if      (element < x.element) x = x.getLeft(revision);
+      else if (element > x.element) x = x.getRight(revision);
+      else                          return true;
+    }
+
+    return false;
+  }
+
+  /***************************************************************************
+   *  Red-black tree insertion.
+   ***************************************************************************/
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   */
+  public boolean add(long element, long revision) {
+    checkLatest(revision);
+
+    Node root = findRoot(revision);
+
+    if (root == null) {
+      setRoot(revision, new Node(revision, element, Color.BLACK, 1));
+    } else {
+      root = add(root, element, revision);
+
+      if (root == null) return false;
+
+      setRoot(revision, root.setColor(revision, Color.BLACK));
+    }
+
+    this.size++;
+
+    return true;
+  }
+
+  // returns the new root of the subtree, or null if the element is already in
+  // the subtree, in which case no set records have been written
+  private Node add(Node h, long element, long revision) {
+    if (h == null) return new Node(revision, element, Color.RED, 1);
+
+    if (element == h.element) return null;
+
+    SetRecord record = h.findRevision(revision);
+    Node child;
+
+    if (element < h.element) {
+      child = add(record.left, element, revision);
+      if (child == null) return null;
+      h = h.setLeft(revision, child);
+    } else {
+      child = add(record.right, element, revision);
+      if (child == null) return null;
+      h = h.setRight(revision, child);
+    }
+
+    record = h.findRevision(revision);
+
+    // fix-up any right-leaning links
+    // if right is red and left is black, rotate left
+    if (isRed(record.right, revision) && !isRed(record.left, revision)) {
+      h = rotateLeft(h, revision);
+      record = h.findRevision(revision);
+      // if left is red and left of left is red, rotate right
+    } if (isRed(record.left, revision) &&
+          isRed(record.left.getLeft(revision), revision)) {
+      h = rotateRight(h, revision);
+      record = h.findRevision(revision);
+      // if left is red and right is red, flip colors
+    } if (isRed(record.left, revision) && isRed(record.right, revision)) {
+      h = flipColors(h, record, revision);
+    }
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Red-black tree deletion.
+   ***************************************************************************/
+
+  // useful because this is a left-leaning tree
+  private Node deleteMin(Node h, long revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (record.left == null)
+      return null;
+
+    if (!isRed(record.left, revision) &&
+        !isRed(record.left.getLeft(revision), revision)) {
+      h = moveRedLeft(h, revision);
+      record = h.findRevision(revision);
+    }
+
+    h = h.setLeft(revision, deleteMin(record.left, revision));
+    return balance(h, revision);
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses is not much cheaper than one that hits: the tree is
+   * rebalanced on the way down before the element is known to be missing,
+   * and every change is then undone. Callers that expect many misses should
+   * check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   */
+  public boolean remove(long element, long revision) {
+    checkLatest(revision);
+
+    Node root = findRoot(revision);
+
+    if (root == null) return false;
+
+    changes.clear();
+    journaling = true;
+    removed = false;
+
+    try {
+      SetRecord record = root.findRevision(revision);
+
+      // if both children of root are black, set root to red
+      if (!isRed(record.left, revision) && !isRed(record.right, revision))
+        root = root.setColor(revision, Color.RED);
+
+      root = remove(root, element, revision);
+
+      if (!removed) {
+        rollback();
+        return false;
+      }
+    } finally {
+      journaling = false;
+      changes.clear();
+    }
+
+    if (root != null) root = root.setColor(revision, Color.BLACK);
+
+    setRoot(revision, root);
+
+    this.size--;
+
+    return true;
+  }
+
+  // sets `removed` if the element was found; otherwise the returned subtree is
+  // meaningless and the journaled writes must be rolled back
+  private Node remove(Node h, long element, long revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (element < h.element)  {
+
+      // fell off the tree: the element is not in the set
+      if (record.left == null) return h;
+
+      if (!isRed(record.left, revision) &&
+          !isRed(record.left.getLeft(revision), revision)) {
+        h = moveRedLeft(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      Node left = remove(record.left, element, revision);
+
+      if (!removed) return h;
+
+      h = h.setLeft(revision, left);
+
+    } else {
+
+      if (isRed(record.left, revision)) {
+        h = rotateRight(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      if (element == h.element && (record.right == null)) {
+        removed = true;
+        return null;
+      }
+
+      if (record.right == null) return h;
+
+      if (!isRed(record.right, revision) &&
+          !isRed(record.right.getLeft(revision), revision)) {
+        h = moveRedRight(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      // you've found the node you're looking for
+      if (element == h.element) {
+        removed = true;
+
+        // right min is the new root
+        Node rightMin = min(record.right, revision),
+             rightSubtree = deleteMin(record.right, revision),
+             leftSubtree = record.left;
+
+        // the successor takes over the position, and so the color, of `h`
+        h = rightMin.update(revision, leftSubtree, rightSubtree, record.color);
+      } else {
+        Node right = remove(record.right, element, revision);
+
+        if (!removed) return h;
+
+        h = h.setRight(revision, right);
+      }
+    }
+    return balance(h, revision);
+  }
+
+  /***************************************************************************
+   *  Red-black tree helper functions.
+   ***************************************************************************/
+
+  // make a left-leaning link lean to the right
+  private Node rotateRight(Node h, long revision) {
+    SetRecord record = h.findRevision(revision);
+    Node left = record.left;
+    SetRecord leftRecord = left.findRevision(revision);
+
+    h = h.update(revision, leftRecord.right, record.right, Color.RED);
+    left = left.update(revision, leftRecord.left, h, record.color);
+
+    // note that `left` is now the root of the subtree because of the rotation
+    return left;
+  }
+
+  // make a right-leaning link lean to the left
+  private Node rotateLeft(Node subtree, long revision) {
+    SetRecord record = subtree.findRevision(revision);
+    Node right = record.right;
+    SetRecord rightRecord = right.findRevision(revision);
+
+    subtree = subtree.update(revision, record.left, rightRecord.left, Color.RED);
+    right = right.update(revision, subtree, rightRecord.right, record.color);
+
+    // note that `right` is now the root of the subtree because of the rotation
+    return right;
+  }
+
+  // flip the colors of a node and its two children, returning the node now in
+  // the place of `h`
+  private Node flipColors(Node h, long revision) {
+    return flipColors(h, h.findRevision(revision), revision);
+  }
+
+  private Node flipColors(Node h, SetRecord record, long revision) {
+    Node left = record.left.setColor(revision,
+        flipColor(record.left.findRevision(revision).color));
+    Node right = record.right.setColor(revision,
+        flipColor(record.right.findRevision(revision).color));
+
+    return h.update(revision, left, right, flipColor(record.color));
+  }
+
+  // find the opposite of the current color
+  private Color flipColor(Color c) {
+    return c == Color.RED ? Color.BLACK : Color.RED;
+  }
+
+  // Assuming that h is red and both h.getLeft(revision) and h.getLeft(revision).getLeft(revision)
+  // are black, make h.getLeft(revision) or one of its children red.
+  private Node moveRedLeft(Node h, long revision) {
+    h = flipColors(h, revision);
+
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.right.getLeft(revision), revision)) {
+      h = h.setRight(revision, rotateRight(record.right, revision));
+      h = rotateLeft(h, revision);
+      h = flipColors(h, revision);
+    }
+
+    return h;
+  }
+
+  // Assuming that h is red and both h.getRight(revision) and h.getRight(revision).getLeft(revision)
+  // are black, make h.getRight(revision) or one of its children red.
+  private Node moveRedRight(Node h, long revision) {
+    h = flipColors(h, revision);
+
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.left.getLeft(revision), revision)) {
+      h = rotateRight(h, revision);
+      h = flipColors(h, revision);
+    }
+
+    return h;
+  }
+
+  // restore red-black tree invariant
+  private Node balance(Node h, long revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.right, revision)) {
+      h = rotateLeft(h, revision);
+      record = h.findRevision(revision);
+    }
+
+    if (isRed(record.left, revision) &&
+        isRed(record.left.getLeft(revision), revision)) {
+      h = rotateRight(h, revision);
+      record = h.findRevision(revision);
+    }
+
+    if (isRed(record.left, revision) && isRed(record.right, revision))
+      h = flipColors(h, record, revision);
+
+    return h;
+  }
+
+  private Node min(Node x, long revision) {
+    for (Node left = x.getLeft(revision); left != null; left = x.getLeft(revision))
+      x = left;
+
+    return x;
+  }
+
+  private Node findRoot(long revision) {
+    if (rootRecords.isEmpty()) return null;
+
+    RootRecord last = rootRecords.get(rootRecords.size() - 1);
+
+    // reads and writes at the newest revision skip the binary search
+    if (revision >= last.revision) return last.root;
+
+    int index = rootIndexOf(revision);
+
+    if (index < 0) index = -index - 2;
+
+    // there was no tree before the first revision
+    return index < 0 ? null : rootRecords.get(index).root;
+  }
+
+  // writes must come at or after the latest revision, or they would change
+  // nodes shared with later revisions
+  private void checkLatest(long revision) {
+    if (!rootRecords.isEmpty()
+        && revision < rootRecords.get(rootRecords.size() - 1).revision)
+      throw new IllegalArgumentException("revision precedes the latest revision");
+  }
+
+  private void setRoot (long revision, Node node) {
+    // will replace the existing entry at `revision`; revisions are
+    // non-decreasing, so that entry can only be the last one
+    int rootIndex = rootRecords.size() - 1;
+
+    if (rootIndex < 0 || rootRecords.get(rootIndex).revision != revision)
+      rootRecords.add(new RootRecord(revision, node));
+    else
+      rootRecords.get(rootIndex).root = node;
+  }
+
+  private int rootIndexOf(long revision) {
+    int begin = 0;
+    int end = rootRecords.size() - 1;
+
+    while (begin <= end) {
+      int mid = (begin + end) >>> 1;
+      long current = rootRecords.get(mid).revision;
+      if (revision == current)
+        return mid;
+      else if (revision > current)
+        begin = mid + 1;
+      else
+        end = mid - 1;
+    }
+
+    return -begin - 1;
+  }
+
+  /***************************************************************************
+   *  Check integrity of red-black tree data structure.
+   ***************************************************************************/
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  public boolean check() {
+    for (RootRecord record : rootRecords)
+      if (!check(record.revision)) return false;
+
+    return true;
+  }
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree.
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   * @see PersistentSet#check(Object)
+   */
+  public boolean check(long revision) {
+    Node root = findRoot(revision);
+
+    return !isRed(root, revision) &&
+      isBST(root, null, null, revision) &&
+      isSizeConsistent(root, revision) &&
+      is23(root, revision) &&
+      isBalanced(root, revision);
+  }
+
+  // is the tree rooted at x a BST with all elements strictly between the
+  // elements of min and max (if min or max is null, treat as empty constraint)?
+  private boolean isBST(Node x, Node min, Node max, long revision) {
+    if (x == null) return true;
+    if (min != null && x.element <= min.element) return false;
+    if (max != null && x.element >= max.element) return false;
+
+    SetRecord record = x.findRevision(revision);
+
+    return isBST(record.left, min, x, revision) &&
+      isBST(record.right, x, max, revision);
+  }
+
+  // are the size fields correct?
+  private boolean isSizeConsistent(Node x, long revision) {
+    if (x == null) return true;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (record.size !=
+        size(record.left, revision) + size(record.right, revision) + 1)
+      return false;
+
+    return isSizeConsistent(record.left, revision) &&
+      isSizeConsistent(record.right, revision);
+  }
+
+  // does the tree have no red right links, and at most one (left) red link
+  // in a row on any path?
+  private boolean is23(Node x, long revision) {
+    if (x == null) return true;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (isRed(record.right, revision)) return false;
+    if (record.color == Color.RED && isRed(record.left, revision))
+      return false;
+
+    return is23(record.left, revision) && is23(record.right, revision);
+  }
+
+  // do all paths from root to leaf have same number of black edges?
+  private boolean isBalanced(Node root, long revision) {
+    // number of black links on path from root to min
+    int black = 0;
+
+    for (Node x = root; x != null; x = x.getLeft(revision))
+      if (!isRed(x, revision)) black++;
+
+    return isBalanced(root, black, revision);
+  }
+
+  // does every path from the root to a leaf have the given number of black
+  // links?
+  private boolean isBalanced(Node x, int black, long revision) {
+    if (x == null) return black == 0;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (record.color != Color.RED) black--;
+
+    return isBalanced(record.left, black, revision) &&
+      isBalanced(record.right, black, revision);
+  }
+
+  /**
+   * Stringifies the set for all revisions.
+   *
+   * @return a string version of the tree with newlines for each revision
+   */
+  public String toString () {
+    StringBuilder str = new StringBuilder();
+
+    for (RootRecord record : rootRecords)
+      str.append("revision ").append(record.revision).append(": ")
+        .append(toString(record.revision)).append("\n");
+
+    return str.toString();
+  }
+
+  /**
+   * Stringifies the set for the specified revision.
+   *
+   * @param revision the revision to stringify
+   * @return a string version of the tree in the recursive form of
+   * (root left-tree right-tree).
+   */
+  public String toString (long revision) {
+    Node root = findRoot(revision);
+
+    return root == null ?
+      "No tree exists at revision " + revision : root.toString(revision);
+  }
+}
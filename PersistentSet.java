@@ -1,23 +1,34 @@
 import java.util.NoSuchElementException;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A Persistent Implementation of a Left Leaning RedBlack Tree as a Set.
  *
  * Takes a revision based approach to persistence, where the revision may be
  * any comparable. Parameterized by {@code E}, the element type to store, and
- * {@code R}, the revision. Both must extend {@code java.lang.Comparable}.
+ * {@code R}, the revision. Both are ordered either by their natural ordering,
+ * in which case they must implement {@code java.lang.Comparable}, or by a
+ * {@code java.util.Comparator} given at construction.
  * This set assumes that the tree is built with non-decreasing revisions.
- * Altering past revisions will not cause cascading changes to future
- * revisions.
+ * Writing at a revision earlier than the latest one is rejected.
  *
  * @author Robert Sedgewick
  * @author Kevin Wayne
  * @author Michael Davis
  */
 
-public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
+public class PersistentSet<E, R> implements RevisionedSet<E, R> {
 
   private enum Color { RED, BLACK }
 
@@ -25,12 +36,14 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   private class SetRecord {
     public R revision;
     public Node left, right, node;
+    public Color color;
     public int size;
 
-    public SetRecord (R revision, Node left, Node right, int size) {
+    public SetRecord (R revision, Node left, Node right, Color color, int size) {
       this.revision = revision;
       this.left = left;
       this.right = right;
+      this.color = color;
       this.size = size;
     }
 
@@ -38,42 +51,45 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
       this.revision = revision;
       this.left = previous.left;
       this.right = previous.right;
+      this.color = previous.color;
       this.size = previous.size;
     }
 
+    // a write is about to change the children, so if they are shared their
+    // children must be marked before they are reached
+    public void shareChildren () {
+      if (left != null) left.shared = true;
+      if (right != null) right.shared = true;
+    }
+
     public String toString () {
       return "revision: " + revision + ", " +
         "left: " + (left == null ? "()" : left.toString(revision)) + ", " +
         "right: " + (right == null ? "()" : right.toString(revision)) + ", " +
+        "color: " + (color == Color.RED ? "red" : "black") + ", " +
         "size: " + size;
     }
   }
 
   // BST helper node data type
   private class Node {
-    private static final int MAX_RECORD_CHANGES = 5;
-
-    // bookkeeping for root nodes
-    private R revision;
-
     public E element;
-    public Color color;
     private List<SetRecord> setRecords;
+    // set once the node has been deleted, or a write has gone to a copy of
+    // it instead, so that it only serves earlier revisions
+    private boolean retired;
+    // set once the node is a child of more than one node, after which it is
+    // never changed again: writes go to a copy
+    private boolean shared;
 
     public Node (E element) {
       this.element = element;
-      this.setRecords = new ArrayList<SetRecord>(MAX_RECORD_CHANGES);
+      this.setRecords = new ArrayList<SetRecord>(recordCapacity);
     }
 
     public Node (R revision, E element, Color color, int size) {
       this(element);
-      this.color = color;
-      this.setRecords.add(new SetRecord(revision, null, null, size));
-    }
-
-    public Node (E element, SetRecord record) {
-      this(element);
-      this.setRecords.add(record);
+      this.setRecords.add(new SetRecord(revision, null, null, color, size));
     }
 
     public String toString (R revision) { return toString(revision, this); }
@@ -81,14 +97,16 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
     private String toString (R revision, Node node) {
       if (node == null) return "()";
 
+      SetRecord record = node.findRevision(revision);
+
       // the element
       return "({" + node.element + ":" +
         // the color
-        (node.color == Color.RED ? "red" : "black") + "} " +
+        (record.color == Color.RED ? "red" : "black") + "} " +
         // the left
-        toString(revision, node.getLeft(revision)) + " " +
+        toString(revision, record.left) + " " +
         // the right
-        toString(revision, node.getRight(revision)) + ")";
+        toString(revision, record.right) + ")";
     }
 
     public Node getLeft (R revision) {
@@ -118,10 +136,18 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
       return current.size;
     }
 
+    // the record in force at `revision`: the latest one made at or before it
     public SetRecord findRevision (R revision) {
+      SetRecord last = setRecords.get(setRecords.size() - 1);
+
+      // reads and writes at the newest revision skip the binary search
+      if (revisionComparator.compare(revision, last.revision) >= 0) return last;
+
       int index = recordIndex(revision);
 
-      return setRecords.get(index < 0 ? -index - 1 : index);
+      if (index < 0) index = Math.max(-index - 2, 0);
+
+      return setRecords.get(index);
     }
 
     private int recordIndex (R revision) {
@@ -131,7 +157,7 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
       while (begin <= end) {
         mid = (begin + end) >> 1;
-        int cmp = revision.compareTo(setRecords.get(mid).revision);
+        int cmp = revisionComparator.compare(revision, setRecords.get(mid).revision);
         if (cmp == 0)
           return mid;
         else if (cmp > 0)
@@ -140,39 +166,34 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
           end = mid - 1;
       }
 
-      return -mid - 1;
+      return -begin - 1;
     }
 
     public Node setLeft(R revision, Node left) {
-      Node node = whichNode(revision);
+      SetRecord current = setRecords.get(setRecords.size() - 1);
 
-      SetRecord current = node.setRecords.get(node.setRecords.size() - 1);
+      return update(revision, left, current.right, current.color);
+    }
 
-      SetRecord change =
-        new SetRecord(
-          revision,
-          left,
-          current.right,
-          size(left, current.right, revision)
-        );
+    public Node setRight(R revision, Node right) {
+      SetRecord current = setRecords.get(setRecords.size() - 1);
 
-      node.setRecord(revision, change);
+      return update(revision, current.left, right, current.color);
+    }
 
-      return node;
+    public Node setColor(R revision, Color color) {
+      SetRecord current = setRecords.get(setRecords.size() - 1);
+
+      return update(revision, current.left, current.right, color);
     }
 
-    public Node setRight(R revision, Node right) {
+    // records the whole state of the node at `revision`; returns the node
+    // holding the new record, which is a copy if this one is full
+    public Node update(R revision, Node left, Node right, Color color) {
       Node node = whichNode(revision);
 
-      SetRecord current = node.setRecords.get(node.setRecords.size() - 1);
-
       SetRecord change =
-        new SetRecord(
-          revision,
-          current.left,
-          right,
-          size(current.left, right, revision)
-        );
+        new SetRecord(revision, left, right, color, size(left, right, revision));
 
       node.setRecord(revision, change);
 
@@ -180,15 +201,25 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
     }
 
     private Node whichNode(R revision) {
-      // if we've maxed out this node, allocate a new one
-      if (setRecords.size() >= MAX_RECORD_CHANGES) {
-        Node replacement =
-          new Node(this.element, setRecords.get(setRecords.size() - 1));
-
-        replacement.color = this.color;
-
-        return replacement;
+      SetRecord last = setRecords.get(setRecords.size() - 1);
+
+      // if we've maxed out this node, allocate a new one, unless the change
+      // only replaces the record already made at `revision`
+      if (shared || setRecords.size() >= recordCapacity &&
+          revisionComparator.compare(last.revision, revision) != 0) {
+        // the copy shares the children of this node with it
+        if (shared) last.shareChildren();
+
+        // journaled like a record, so that an aborted remove leaves this
+        // node as it was
+        if (!retired) {
+          journal(this, RETIRED, null);
+          retired = true;
+        }
+
+        return new Node(this.element);
       }
+
       return this;
     }
 
@@ -200,30 +231,231 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
     }
 
     private void setRecord (R revision, SetRecord record) {
-      // will replace the existing entry at `revision`
-      int index = recordIndex(revision);
+      // will replace the existing entry at `revision`; revisions are
+      // non-decreasing, so that entry can only be the last one
+      int index = setRecords.size() - 1;
 
-      if (index < 0 || ! setRecords.get(index).revision.equals(revision))
+      if (index < 0 ||
+          revisionComparator.compare(setRecords.get(index).revision, revision) != 0) {
+        journal(this, setRecords.size(), null);
         setRecords.add(record);
-      else
+      } else {
+        journal(this, index, setRecords.get(index));
         setRecords.set(index, record);
+      }
     }
   }
 
-  private ArrayList<Node> rootRecords;
+  // a set record written while removing an element, or a node retired
+  private class Change {
+    public Node node;
+    // the replaced record, or null if the record at `index` was appended
+    public SetRecord record;
+    // RETIRED if the change was to retire the node
+    public int index;
+
+    public Change (Node node, int index, SetRecord record) {
+      this.node = node;
+      this.index = index;
+      this.record = record;
+    }
+  }
+
+  // saves the root of the tree at a revision
+  private class RootRecord {
+    public R revision;
+    public Node root;
+
+    public RootRecord (R revision, Node root) {
+      this.revision = revision;
+      this.root = root;
+    }
+  }
+
+  // orders elements and revisions by their natural ordering
+  static class NaturalOrder implements Comparator<Object> {
+    static final NaturalOrder INSTANCE = new NaturalOrder();
+
+    @SuppressWarnings("unchecked")
+    public int compare (Object a, Object b) {
+      return ((Comparable<Object>) a).compareTo(b);
+    }
+  }
+
+  // every comparison goes through these, so that a call site only ever sees
+  // the one comparator class a set is built with and the JIT can inline it
+  private final Comparator<? super E> elementComparator;
+  private final Comparator<? super R> revisionComparator;
+
+  private static final int DEFAULT_RECORD_CAPACITY = 5;
+  private static final int MAX_RECORD_CAPACITY = 32;
+
+  // the number of writes and past-revision reads between adaptations
+  private static final int ADAPT_PERIOD = 1024;
+
+  // the number of set records a node holds before a write copies it
+  private int recordCapacity;
+  private final boolean adaptive;
+  private int writes = 0;
+  private int historicReads = 0;
+
+  private ArrayList<RootRecord> rootRecords;
   private int size = 0;
 
+  // the top-down deletion restructures the tree before it knows whether the
+  // element is there at all, so its writes are journaled and rolled back when
+  // the element turns out to be absent
+  private ArrayList<Change> changes = new ArrayList<Change>();
+  // the index of a change that retired its node
+  private static final int RETIRED = -1;
+  private boolean journaling = false;
+  private boolean removed;
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by their
+   * natural ordering.
+   *
+   * @throws ClassCastException on the first comparison if {@code E} or
+   *     {@code R} does not implement {@code java.lang.Comparable}
+   */
+  public PersistentSet() { this(DEFAULT_RECORD_CAPACITY); }
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by their
+   * natural ordering, whose nodes hold up to {@code recordCapacity} set
+   * records.
+   *
+   * @param recordCapacity the number of set records a node holds before a
+   *     write copies it
+   * @throws IllegalArgumentException if {@code recordCapacity} is less than 1
+   */
+  public PersistentSet(int recordCapacity) {
+    this(NaturalOrder.INSTANCE, NaturalOrder.INSTANCE, recordCapacity);
+  }
+
+  /**
+   * Initializes an empty set, ordering elements and revisions by the given
+   * comparators.
+   *
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @throws IllegalArgumentException if either comparator is {@code null}
+   */
+  public PersistentSet(Comparator<? super E> elementComparator,
+                       Comparator<? super R> revisionComparator) {
+    this(elementComparator, revisionComparator, DEFAULT_RECORD_CAPACITY);
+  }
+
   /**
-   * Initializes an empty set.
+   * Initializes an empty set, ordering elements and revisions by the given
+   * comparators, whose nodes hold up to {@code recordCapacity} set records.
+   *
+   * Larger nodes are copied less often by writes, but cost reads at past
+   * revisions a longer binary search at every node. A capacity of 1 copies
+   * every node a write touches. See {@link #adaptive()} for a set that picks
+   * its own capacity.
+   *
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @param recordCapacity the number of set records a node holds before a
+   *     write copies it
+   * @throws IllegalArgumentException if either comparator is {@code null} or
+   *     {@code recordCapacity} is less than 1
+   */
+  public PersistentSet(Comparator<? super E> elementComparator,
+                       Comparator<? super R> revisionComparator,
+                       int recordCapacity) {
+    this(elementComparator, revisionComparator, recordCapacity, false);
+  }
+
+  private PersistentSet(Comparator<? super E> elementComparator,
+                        Comparator<? super R> revisionComparator,
+                        int recordCapacity, boolean adaptive) {
+    if (elementComparator == null || revisionComparator == null)
+      throw new IllegalArgumentException("comparator is null");
+    if (recordCapacity < 1)
+      throw new IllegalArgumentException("record capacity is less than 1");
+
+    this.elementComparator = elementComparator;
+    this.revisionComparator = revisionComparator;
+    this.adaptive = adaptive;
+    this.recordCapacity = recordCapacity;
+    this.rootRecords = new ArrayList<RootRecord>();
+  }
+
+  /**
+   * Creates an empty set, ordering elements and revisions by their natural
+   * ordering, that picks its own record capacity. See
+   * {@link #adaptive(Comparator, Comparator)}.
+   *
+   * @return an empty set
+   */
+  public static <E extends Comparable<? super E>, R extends Comparable<? super R>>
+      PersistentSet<E, R> adaptive() {
+    return adaptive(NaturalOrder.INSTANCE, NaturalOrder.INSTANCE);
+  }
+
+  /**
+   * Creates an empty set, ordering elements and revisions by the given
+   * comparators, that picks its own record capacity from how often it is
+   * written compared to how often it is read at past revisions.
+   *
+   * The capacity starts at 5. Every 1024 writes and past-revision reads, it
+   * doubles, up to 32, if writes outnumbered those reads four to one, and
+   * halves, down to 1, if the reverse held.
+   *
+   * Reads at past revisions update the counts, so unlike other sets, an
+   * adaptive set must not be read from several threads at once without
+   * synchronization.
+   *
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @return an empty set
+   * @throws IllegalArgumentException if either comparator is {@code null}
    */
-  public PersistentSet() { rootRecords = new ArrayList<Node>(); }
+  public static <E, R> PersistentSet<E, R> adaptive(Comparator<? super E> elementComparator,
+                                                    Comparator<? super R> revisionComparator) {
+    return new PersistentSet<E, R>(elementComparator, revisionComparator,
+        DEFAULT_RECORD_CAPACITY, true);
+  }
 
   /***************************************************************************
    *  Node helper methods.
    ***************************************************************************/
 
-  private boolean isRed(Node x) {
-    return x == null ? false : x.color == Color.RED;
+  private boolean isRed(Node x, R revision) {
+    return x == null ? false : x.findRevision(revision).color == Color.RED;
+  }
+
+  // called on every write and every past-revision read of an adaptive set
+  private void adapt() {
+    if (writes + historicReads < ADAPT_PERIOD) return;
+
+    if (writes > 4 * historicReads)
+      recordCapacity = Math.min(recordCapacity * 2, MAX_RECORD_CAPACITY);
+    else if (historicReads > 4 * writes)
+      recordCapacity = Math.max(recordCapacity / 2, 1);
+
+    writes = 0;
+    historicReads = 0;
+  }
+
+  private void journal(Node x, int index, SetRecord record) {
+    if (journaling) changes.add(new Change(x, index, record));
+  }
+
+  // undo every journaled write, newest first
+  private void rollback() {
+    for (int i = changes.size() - 1; i >= 0; i--) {
+      Change change = changes.get(i);
+
+      if (change.index == RETIRED)
+        change.node.retired = false;
+      else if (change.record == null)
+        change.node.setRecords.remove(change.index);
+      else
+        change.node.setRecords.set(change.index, change.record);
+    }
   }
 
   // number of node in subtree rooted at x; 0 if x is null
@@ -275,16 +507,22 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
     Node root = findRoot(revision);
 
-    return predecessor(root, null, element, revision);
+    return predecessor(root, element, revision);
   }
 
-  private E predecessor(Node x, E accumulator, E element, R revision) {
-    if (x == null) return accumulator;
-    int cmp = element.compareTo(x.element);
-    if (cmp < 0)
-      return predecessor(x.getLeft(revision), accumulator, element, revision);
-    else
-      return predecessor(x.getRight(revision), x.element, element, revision);
+  private E predecessor(Node x, E element, R revision) {
+    E accumulator = null;
+
+    while (x != null) {
+      if (elementComparator.compare(element, x.element) <= 0) {
+        x = x.getLeft(revision);
+      } else {
+        accumulator = x.element;
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
   }
 
   /**
@@ -302,21 +540,165 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
     Node root = findRoot(revision);
 
-    return successor(root, null, element, revision);
+    return successor(root, element, revision);
   }
 
-  private E successor(Node x, E accumulator, E element, R revision) {
-    if (x == null) return accumulator;
+  private E successor(Node x, E element, R revision) {
+    E accumulator = null;
 
-    if (element.compareTo(x.element) < 0)
-      return successor(x.getLeft(revision), x.element, element, revision);
-    else
-      return successor(x.getRight(revision), accumulator, element, revision);
+    while (x != null) {
+      if (elementComparator.compare(element, x.element) < 0) {
+        accumulator = x.element;
+        x = x.getLeft(revision);
+      } else {
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * The predecessor and successor of an element, as found by {@link
+   * #neighbors(Object, Object, Neighbors)}. A holder can be reused from one
+   * query to the next.
+   */
+  public static class Neighbors<E> {
+    /** The greatest element smaller than the one searched for, or null. */
+    public E predecessor;
+    /** The smallest element greater than the one searched for, or null. */
+    public E successor;
+  }
+
+  /**
+   * Returns the predecessor and successor of {@code element} in a new holder.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the neighbors
+   * @return the neighbors of {@code element}
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   * @see #neighbors(Object, Object, Neighbors)
+   */
+  public Neighbors<E> neighbors(E element, R revision) {
+    return neighbors(element, revision, new Neighbors<E>());
+  }
+
+  /**
+   * Finds both the predecessor and the successor of {@code element} in one
+   * descent, and stores them in {@code neighbors} rather than allocating.
+   *
+   * The descent passes the successor on every step left and the predecessor
+   * on every step right; if it meets the element itself, the neighbors are
+   * the greatest element of its left subtree and the smallest of its right.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the neighbors
+   * @param neighbors the holder to store the neighbors in
+   * @return {@code neighbors}
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public Neighbors<E> neighbors(E element, R revision, Neighbors<E> neighbors) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to neighbors() is null");
+
+    E predecessor = null, successor = null;
+
+    for (Node x = findRoot(revision); x != null; ) {
+      SetRecord record = x.findRevision(revision);
+      int cmp = elementComparator.compare(element, x.element);
+
+      if (cmp < 0) {
+        successor = x.element;
+        x = record.left;
+      } else if (cmp > 0) {
+        predecessor = x.element;
+        x = record.right;
+      } else {
+        if (record.left != null) predecessor = max(record.left, revision).element;
+        if (record.right != null) successor = min(record.right, revision).element;
+        break;
+      }
+    }
+
+    neighbors.predecessor = predecessor;
+    neighbors.successor = successor;
+
+    return neighbors;
+  }
+
+  /**
+   * Returns the greatest element not greater than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E floor(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to floor() is null");
+
+    return floor(findRoot(revision), element, revision);
+  }
+
+  private E floor(Node x, E element, R revision) {
+    E accumulator = null;
+
+    while (x != null) {
+      int cmp = elementComparator.compare(element, x.element);
+
+      if (cmp < 0) {
+        x = x.getLeft(revision);
+      } else {
+        accumulator = x.element;
+        if (cmp == 0) break;
+        x = x.getRight(revision);
+      }
+    }
+
+    return accumulator;
+  }
+
+  /**
+   * Returns the smallest element not smaller than {@code element}, in a
+   * single descent.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  public E ceiling(E element, R revision) {
+    if (element == null)
+      throw new IllegalArgumentException("argument to ceiling() is null");
+
+    return ceiling(findRoot(revision), element, revision);
+  }
+
+  private E ceiling(Node x, E element, R revision) {
+    E accumulator = null;
+
+    while (x != null) {
+      int cmp = elementComparator.compare(element, x.element);
+
+      if (cmp > 0) {
+        x = x.getRight(revision);
+      } else {
+        accumulator = x.element;
+        if (cmp == 0) break;
+        x = x.getLeft(revision);
+      }
+    }
+
+    return accumulator;
   }
 
   private E get(Node x, E element, R revision) {
     while (x != null) {
-      int cmp = element.compareTo(x.element);
+      int cmp = elementComparator.compare(element, x.element);
       if      (cmp < 0) x = x.getLeft(revision);
       else if (cmp > 0) x = x.getRight(revision);
       else              return x.element;
@@ -338,139 +720,1119 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   }
 
   /***************************************************************************
-   *  Red-black tree insertion.
+   *  Ordered set methods.
    ***************************************************************************/
 
   /**
-   * Inserts the specified element into the set.
+   * Returns the number of elements in the set strictly smaller than
+   * {@code element}.
    *
-   * @param element the element to add to the set
-   * @param revision the tree revision for which to add the element
-   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @param element the element to rank
+   * @param revision the revision of the tree in which to rank the element
+   * @return the number of elements in the set smaller than {@code element}
    * @throws IllegalArgumentException if {@code element} is {@code null}
    */
-  public boolean add(E element, R revision) {
-    if (element == null) throw new IllegalArgumentException("argument to add() is null");
+  public int rank(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to rank() is null");
 
-    if (contains(element, revision)) return false;
+    return rank(findRoot(revision), element, revision);
+  }
+
+  /**
+   * Returns the number of elements from {@code lo} inclusive to {@code hi}
+   * exclusive, in O(log n) however many there are.
+   *
+   * @param lo the smallest element to count
+   * @param hi the element above the greatest one to count
+   * @param revision the revision of the tree in which to count
+   * @return the number of elements in the set between {@code lo} and
+   *     {@code hi}
+   * @throws IllegalArgumentException if {@code lo} or {@code hi} is {@code
+   *     null}, or if {@code lo} is greater than {@code hi}
+   */
+  public int countRange(E lo, E hi, R revision) {
+    if (lo == null || hi == null)
+      throw new IllegalArgumentException("argument to countRange() is null");
+    if (elementComparator.compare(lo, hi) > 0)
+      throw new IllegalArgumentException("range start is greater than range end");
 
     Node root = findRoot(revision);
 
-    if (root == null) {
-      setRoot(revision, new Node(revision, element, Color.BLACK, 1));
-    } else {
-      setRoot(revision, add(root, element, revision));
+    return rank(root, hi, revision) - rank(root, lo, revision);
+  }
 
-      root = findRoot(revision);
+  private int rank(Node x, E element, R revision) {
+    return rank(x, element, false, revision);
+  }
 
-      root.color = Color.BLACK;
-    }
+  // the number of elements smaller than element, or with inclusive, not
+  // greater than it
+  private int rank(Node x, E element, boolean inclusive, R revision) {
+    int rank = 0;
 
-    this.size++;
+    while (x != null) {
+      SetRecord record = x.findRevision(revision);
+      int cmp = elementComparator.compare(element, x.element);
 
-    return true;
+      if (cmp < 0) {
+        x = record.left;
+      } else {
+        // everything in the left subtree is smaller, and so is x unless it
+        // is the element itself
+        rank += size(record.left, revision);
+
+        if (cmp == 0) return inclusive ? rank + 1 : rank;
+
+        rank++;
+        x = record.right;
+      }
+    }
+
+    return rank;
   }
 
-  private Node add(Node h, E element, R revision) {
-    if (h == null) return new Node(revision, element, Color.RED, 1);
+  /**
+   * Returns the element of the set of a given rank: the one with {@code k}
+   * smaller elements.
+   *
+   * @param k the order statistic
+   * @param revision the revision of the tree from which to select
+   * @return the element in the set of rank {@code k}
+   * @throws IllegalArgumentException unless {@code k} is between 0 and
+   *     <em>n</em>-1, <em>n</em> being the size of the set at {@code revision}
+   */
+  public E select(int k, R revision) {
+    Node x = findRoot(revision);
 
-    int cmp = element.compareTo(h.element);
+    if (k < 0 || k >= size(x, revision))
+      throw new IllegalArgumentException("argument to select() is invalid: " + k);
 
-    if (cmp < 0)
-      h = h.setLeft( revision, add(h.getLeft(revision),  element, revision));
-    else
-      h = h.setRight(revision, add(h.getRight(revision), element, revision));
+    while (true) {
+      SetRecord record = x.findRevision(revision);
+      int leftSize = size(record.left, revision);
 
-    // fix-up any right-leaning links
-    // if right is red and left is black, rotate left
-    if (isRed(h.getRight(revision)) && !isRed(h.getLeft(revision))) {
-      h = rotateLeft(h, revision);
-      // if left is red and left of left is red, rotate right
-    } if (isRed(h.getLeft(revision)) && isRed(h.getLeft(revision).getLeft(revision))) {
-      h = rotateRight(h, revision);
-      // if left is red and right is red, flip colors
-    } if (isRed(h.getLeft(revision)) && isRed(h.getRight(revision))) {
-      flipColors(h, revision);
+      if (k < leftSize) {
+        x = record.left;
+      } else if (k > leftSize) {
+        k -= leftSize + 1;
+        x = record.right;
+      } else {
+        return x.element;
+      }
     }
-
-    return h;
   }
 
   /***************************************************************************
-   *  Red-black tree deletion.
+   *  Iteration.
    ***************************************************************************/
 
-  // useful because this is a left-leaning tree
-  private Node deleteMin(Node h, R revision) {
-    if (h.getLeft(revision) == null)
-      return null;
-
-    if (!isRed(h.getLeft(revision)) && !isRed(h.getLeft(revision).getLeft(revision)))
-      h = moveRedLeft(h, revision);
+  /**
+   * Returns an iterator over the elements of the set at {@code revision}, in
+   * ascending order.
+   *
+   * The iterator keeps only the path from the root to its next element, and
+   * looks up the set record of each node once. If the set is changed at
+   * {@code revision} while it is in use, what it returns is unspecified;
+   * changes at later revisions do not affect it.
+   *
+   * @param revision the revision of the tree to iterate over
+   * @return an iterator over the elements in ascending order
+   */
+  public Iterator<E> iterator(R revision) {
+    Node root = findRoot(revision);
+    int size = size(root, revision);
 
-    h = h.setLeft(revision, deleteMin(h.getLeft(revision), revision));
-    return balance(h, revision);
+    return new TreeIterator(root, revision, false, 0, size);
   }
 
   /**
-   * Removes the specified element from the set.
+   * Returns an iterator over the elements of the set at {@code revision}, in
+   * descending order.
    *
-   * @param element the element to add to the set
-   * @param revision the revision of the tree from which to delete
-   * @return {@code true} if the element was removed, {@code false} otherwise
-   * @throws IllegalArgumentException if {@code element} is {@code null}
+   * @param revision the revision of the tree to iterate over
+   * @return an iterator over the elements in descending order
+   * @see #iterator(Object)
    */
-  public boolean remove(E element, R revision) {
-    if (element == null) throw new IllegalArgumentException("argument to remove() is null");
-
-    if (!contains(element, revision)) return false;
-
+  public Iterator<E> descendingIterator(R revision) {
     Node root = findRoot(revision);
+    int size = size(root, revision);
 
-    // if both children of root are black, set root to red
-    if (!isRed(root.getLeft(revision)) && !isRed(root.getRight(revision)))
-      root.color = Color.RED;
-
-    setRoot(revision, remove(root, element, revision));
+    return new TreeIterator(root, revision, true, size - 1, size);
+  }
 
-    if (!isEmpty(revision)) findRoot(revision).color = Color.BLACK;
+  // an in-order walk with an explicit stack
+  private class TreeIterator implements Iterator<E> {
+    private final R revision;
+    private final boolean descending;
+    // the nodes whose elements are still to come before their right (or,
+    // descending, left) subtrees, each with its record, deepest last
+    private final ArrayList<Node> nodes;
+    private final ArrayList<SetRecord> records;
+    // the number of elements still to be returned
+    private int remaining;
+
+    // walks count elements from the one of rank k
+    public TreeIterator (Node root, R revision, boolean descending, int k, int count) {
+      // a red-black tree of n nodes is at most 2 lg n high
+      int height = 2 * (32 - Integer.numberOfLeadingZeros(size(root, revision)));
 
-    this.size--;
+      this.revision = revision;
+      this.descending = descending;
+      this.nodes = new ArrayList<Node>(height);
+      this.records = new ArrayList<SetRecord>(height);
+      this.remaining = count;
+
+      // stacks the nodes on the path to the element of rank k that come
+      // after it in the direction of the walk
+      for (Node x = root; x != null; ) {
+        SetRecord record = x.findRevision(revision);
+        int leftSize = size(record.left, revision);
+
+        if (k < leftSize) {
+          if (!descending) stack(x, record);
+          x = record.left;
+        } else if (k > leftSize) {
+          if (descending) stack(x, record);
+          k -= leftSize + 1;
+          x = record.right;
+        } else {
+          stack(x, record);
+          break;
+        }
+      }
+    }
 
-    return true;
-  }
+    private void stack (Node x, SetRecord record) {
+      nodes.add(x);
+      records.add(record);
+    }
 
-  private Node remove(Node h, E element, R revision) {
-    if (element.compareTo(h.element) < 0)  {
+    // stacks x and the nodes on the path to the first element of its subtree
+    private void push (Node x) {
+      while (x != null) {
+        SetRecord record = x.findRevision(revision);
 
-      if (!isRed(h.getLeft(revision)) && !isRed(h.getLeft(revision).getLeft(revision)))
-        h = moveRedLeft(h, revision);
+        stack(x, record);
+        x = descending ? record.right : record.left;
+      }
+    }
 
-      h = h.setLeft(revision, remove(h.getLeft(revision), element, revision));
+    public boolean hasNext () { return remaining > 0; }
 
-    } else {
+    public E next () {
+      int top = nodes.size() - 1;
 
-      if (isRed(h.getLeft(revision)))
-        h = rotateRight(h, revision);
+      if (remaining == 0 || top < 0) throw new NoSuchElementException();
 
-      if (element.compareTo(h.element) == 0 && (h.getRight(revision) == null))
-        return null;
+      remaining--;
 
-      if (!isRed(h.getRight(revision)) && !isRed(h.getRight(revision).getLeft(revision)))
-        h = moveRedRight(h, revision);
+      Node x = nodes.remove(top);
+      SetRecord record = records.remove(top);
 
-      // you've found the node you're looking for
-      if (element.compareTo(h.element) == 0) {
-        // right min is the new root
-        Node rightMin = min(h.getRight(revision), revision),
-             rightSubtree = deleteMin(h.getRight(revision), revision),
-             leftSubtree = h.getLeft(revision);
+      push(descending ? record.left : record.right);
 
-        h = rightMin
-              .setRight(revision, rightSubtree)
-              .setLeft (revision, leftSubtree);
+      return x.element;
+    }
+  }
+
+  /**
+   * Returns a spliterator over the elements of the set at {@code revision},
+   * in ascending order.
+   *
+   * It splits by halving the ranks it has left, finding where each half
+   * starts from the subtree sizes, so both halves know their exact sizes.
+   *
+   * @param revision the revision of the tree to iterate over
+   * @return a spliterator over the elements in ascending order
+   * @see #iterator(Object)
+   */
+  public Spliterator<E> spliterator(R revision) {
+    Node root = findRoot(revision);
+
+    return new TreeSpliterator(root, revision, 0, size(root, revision));
+  }
+
+  /**
+   * Returns a sequential stream of the elements of the set at {@code
+   * revision}, in ascending order.
+   *
+   * @param revision the revision of the tree to stream
+   * @return a stream of the elements in ascending order
+   */
+  public Stream<E> stream(R revision) {
+    return StreamSupport.stream(spliterator(revision), false);
+  }
+
+  /**
+   * Returns a parallel stream of the elements of the set at {@code
+   * revision}, in ascending order.
+   *
+   * @param revision the revision of the tree to stream
+   * @return a parallel stream of the elements in ascending order
+   * @see #spliterator(Object)
+   */
+  public Stream<E> parallelStream(R revision) {
+    return StreamSupport.stream(spliterator(revision), true);
+  }
+
+  // the elements of ranks `index` up to `fence`
+  private class TreeSpliterator implements Spliterator<E> {
+    private final Node root;
+    private final R revision;
+    private int index;
+    private final int fence;
+    // made on the first element, so that splitting before then is free
+    private TreeIterator iterator;
+
+    public TreeSpliterator (Node root, R revision, int index, int fence) {
+      this.root = root;
+      this.revision = revision;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    public boolean tryAdvance (Consumer<? super E> action) {
+      if (action == null) throw new NullPointerException();
+      if (index >= fence) return false;
+      if (iterator == null)
+        iterator = new TreeIterator(root, revision, false, index, fence - index);
+
+      index++;
+      action.accept(iterator.next());
+
+      return true;
+    }
+
+    public void forEachRemaining (Consumer<? super E> action) {
+      while (tryAdvance(action));
+    }
+
+    public Spliterator<E> trySplit () {
+      int mid = (index + fence) >>> 1;
+
+      if (mid <= index) return null;
+
+      // the prefix carries on where this one was, and this one starts again
+      // from the middle
+      TreeSpliterator prefix = new TreeSpliterator(root, revision, index, mid);
+
+      prefix.iterator = iterator;
+      iterator = null;
+      index = mid;
+
+      return prefix;
+    }
+
+    public long estimateSize () { return fence - index; }
+
+    public int characteristics () {
+      return SIZED | SUBSIZED | SORTED | DISTINCT | ORDERED | NONNULL;
+    }
+
+    public Comparator<? super E> getComparator () {
+      return sortedComparator();
+    }
+  }
+
+  // the comparator as a sorted collection reports it, null standing for the
+  // natural ordering
+  private Comparator<? super E> sortedComparator() {
+    return elementComparator == NaturalOrder.INSTANCE ? null : elementComparator;
+  }
+
+  /***************************************************************************
+   *  Range views.
+   ***************************************************************************/
+
+  /**
+   * Returns a read-only view of the whole set at {@code revision}, for code
+   * that takes a {@code java.util.NavigableSet}.
+   *
+   * Nothing is copied: the view keeps the root of the revision, and its
+   * searches, iterators and views of ranges all work on the nodes of the
+   * tree directly. Its size, like that of a range, is found from subtree
+   * sizes. Methods that would change it throw {@code
+   * UnsupportedOperationException}. If the set is changed at {@code
+   * revision} while the view is in use, what it returns is unspecified.
+   *
+   * @param revision the revision of the tree to view
+   * @return a view of the set at {@code revision}
+   */
+  public NavigableSet<E> snapshot(R revision) {
+    return new RangeView(findRoot(revision), revision, null, false, null, false);
+  }
+
+  /**
+   * Returns a read-only view of the elements of the set at {@code revision}
+   * from {@code lo} inclusive to {@code hi} exclusive.
+   *
+   * The view keeps the root of the revision, so its size takes two ranks,
+   * its first and last elements a search each, and iterating it starts at
+   * {@code lo} without walking the elements before it. If the set is changed
+   * at {@code revision} while the view is in use, what it returns is
+   * unspecified.
+   *
+   * @param lo the smallest element of the view
+   * @param hi the element above the greatest one of the view
+   * @param revision the revision of the tree to view
+   * @return a view of the elements between {@code lo} and {@code hi}
+   * @throws IllegalArgumentException if {@code lo} or {@code hi} is {@code
+   *     null}, or if {@code lo} is greater than {@code hi}
+   */
+  public NavigableSet<E> subSet(E lo, E hi, R revision) {
+    if (lo == null || hi == null)
+      throw new IllegalArgumentException("argument to subSet() is null");
+    if (elementComparator.compare(lo, hi) > 0)
+      throw new IllegalArgumentException("range start is greater than range end");
+
+    return new RangeView(findRoot(revision), revision, lo, true, hi, false);
+  }
+
+  /**
+   * Returns a read-only view of the elements of the set at {@code revision}
+   * smaller than {@code hi}.
+   *
+   * @param hi the element above the greatest one of the view
+   * @param revision the revision of the tree to view
+   * @return a view of the elements smaller than {@code hi}
+   * @throws IllegalArgumentException if {@code hi} is {@code null}
+   * @see #subSet(Object, Object, Object)
+   */
+  public NavigableSet<E> headSet(E hi, R revision) {
+    if (hi == null) throw new IllegalArgumentException("argument to headSet() is null");
+
+    return new RangeView(findRoot(revision), revision, null, false, hi, false);
+  }
+
+  /**
+   * Returns a read-only view of the elements of the set at {@code revision}
+   * from {@code lo} on.
+   *
+   * @param lo the smallest element of the view
+   * @param revision the revision of the tree to view
+   * @return a view of the elements not smaller than {@code lo}
+   * @throws IllegalArgumentException if {@code lo} is {@code null}
+   * @see #subSet(Object, Object, Object)
+   */
+  public NavigableSet<E> tailSet(E lo, R revision) {
+    if (lo == null) throw new IllegalArgumentException("argument to tailSet() is null");
+
+    return new RangeView(findRoot(revision), revision, lo, true, null, false);
+  }
+
+  // the elements of a revision between two bounds, a null bound meaning
+  // there is none on that side
+  private class RangeView extends AbstractSet<E> implements NavigableSet<E> {
+    private final Node root;
+    private final R revision;
+    private final E lo, hi;
+    private final boolean loInclusive, hiInclusive;
+
+    public RangeView (Node root, R revision,
+                      E lo, boolean loInclusive, E hi, boolean hiInclusive) {
+      this.root = root;
+      this.revision = revision;
+      this.lo = lo;
+      this.loInclusive = loInclusive;
+      this.hi = hi;
+      this.hiInclusive = hiInclusive;
+    }
+
+    // the rank of the first element of the view
+    private int start () {
+      return lo == null ? 0 : rank(root, lo, !loInclusive, revision);
+    }
+
+    // the rank of the first element after the view
+    private int end () {
+      return hi == null ? PersistentSet.this.size(root, revision)
+                        : rank(root, hi, hiInclusive, revision);
+    }
+
+    // whether element, as a bound included or not, falls below the view
+    private boolean tooLow (E element, boolean inclusive) {
+      if (lo == null) return false;
+
+      int cmp = elementComparator.compare(element, lo);
+
+      return cmp < 0 || (cmp == 0 && inclusive && !loInclusive);
+    }
+
+    private boolean tooHigh (E element, boolean inclusive) {
+      if (hi == null) return false;
+
+      int cmp = elementComparator.compare(element, hi);
+
+      return cmp > 0 || (cmp == 0 && inclusive && !hiInclusive);
+    }
+
+    private boolean inRange (E element, boolean inclusive) {
+      return !tooLow(element, inclusive) && !tooHigh(element, inclusive);
+    }
+
+    // the element found in the whole tree, unless it is outside the view
+    private E within (E element) {
+      return element == null || !inRange(element, true) ? null : element;
+    }
+
+    public int size () { return Math.max(0, end() - start()); }
+
+    @SuppressWarnings("unchecked")
+    public boolean contains (Object o) {
+      E element = (E) o;
+
+      return inRange(element, true) && get(root, element, revision) != null;
+    }
+
+    public Iterator<E> iterator () {
+      int start = start();
+
+      return new TreeIterator(root, revision, false, start, Math.max(0, end() - start));
+    }
+
+    public Iterator<E> descendingIterator () {
+      int end = end();
+      int count = Math.max(0, end - start());
+
+      return new TreeIterator(root, revision, true, end - 1, count);
+    }
+
+    public Spliterator<E> spliterator () {
+      int start = start();
+
+      return new TreeSpliterator(root, revision, start, Math.max(start, end()));
+    }
+
+    public Comparator<? super E> comparator () { return sortedComparator(); }
+
+    // the smallest element of the view, or null if it is empty
+    private E lowest () {
+      if (lo == null) return root == null ? null : within(min(root, revision).element);
+
+      return loInclusive ? ceiling(lo) : higher(lo);
+    }
+
+    private E highest () {
+      if (hi == null) return root == null ? null : within(max(root, revision).element);
+
+      return hiInclusive ? floor(hi) : lower(hi);
+    }
+
+    public E first () {
+      E first = lowest();
+
+      if (first == null) throw new NoSuchElementException();
+
+      return first;
+    }
+
+    public E last () {
+      E last = highest();
+
+      if (last == null) throw new NoSuchElementException();
+
+      return last;
+    }
+
+    public E lower (E element) {
+      // past the end of the view, the answer is its last element
+      if (tooHigh(element, false)) return highest();
+
+      return within(PersistentSet.this.predecessor(root, element, revision));
+    }
+
+    public E floor (E element) {
+      if (tooHigh(element, true)) return highest();
+
+      return within(PersistentSet.this.floor(root, element, revision));
+    }
+
+    public E ceiling (E element) {
+      if (tooLow(element, true)) return lowest();
+
+      return within(PersistentSet.this.ceiling(root, element, revision));
+    }
+
+    public E higher (E element) {
+      if (tooLow(element, false)) return lowest();
+
+      return within(PersistentSet.this.successor(root, element, revision));
+    }
+
+    public E pollFirst () { throw new UnsupportedOperationException(); }
+
+    public E pollLast () { throw new UnsupportedOperationException(); }
+
+    public NavigableSet<E> descendingSet () { return new DescendingView(this); }
+
+    public NavigableSet<E> subSet (E from, boolean fromInclusive,
+                                   E to, boolean toInclusive) {
+      bound(from, fromInclusive);
+      bound(to, toInclusive);
+      if (elementComparator.compare(from, to) > 0)
+        throw new IllegalArgumentException("range start is greater than range end");
+
+      return new RangeView(root, revision, from, fromInclusive, to, toInclusive);
+    }
+
+    public NavigableSet<E> headSet (E to, boolean inclusive) {
+      bound(to, inclusive);
+
+      return new RangeView(root, revision, lo, loInclusive, to, inclusive);
+    }
+
+    public NavigableSet<E> tailSet (E from, boolean inclusive) {
+      bound(from, inclusive);
+
+      return new RangeView(root, revision, from, inclusive, hi, hiInclusive);
+    }
+
+    public NavigableSet<E> subSet (E from, E to) { return subSet(from, true, to, false); }
+
+    public NavigableSet<E> headSet (E to) { return headSet(to, false); }
+
+    public NavigableSet<E> tailSet (E from) { return tailSet(from, true); }
+
+    // checks a bound for a view of part of this one
+    private void bound (E element, boolean inclusive) {
+      if (element == null) throw new NullPointerException();
+      if (!inRange(element, inclusive))
+        throw new IllegalArgumentException("bound out of range");
+    }
+  }
+
+  // a range view in reverse, with every question turned around
+  private class DescendingView extends AbstractSet<E> implements NavigableSet<E> {
+    private final RangeView ascending;
+
+    public DescendingView (RangeView ascending) { this.ascending = ascending; }
+
+    public int size () { return ascending.size(); }
+
+    public boolean contains (Object o) { return ascending.contains(o); }
+
+    public Iterator<E> iterator () { return ascending.descendingIterator(); }
+
+    public Iterator<E> descendingIterator () { return ascending.iterator(); }
+
+    public Comparator<? super E> comparator () {
+      return Collections.reverseOrder(ascending.comparator());
+    }
+
+    public E first () { return ascending.last(); }
+
+    public E last () { return ascending.first(); }
+
+    public E lower (E element) { return ascending.higher(element); }
+
+    public E floor (E element) { return ascending.ceiling(element); }
+
+    public E ceiling (E element) { return ascending.floor(element); }
+
+    public E higher (E element) { return ascending.lower(element); }
+
+    public E pollFirst () { throw new UnsupportedOperationException(); }
+
+    public E pollLast () { throw new UnsupportedOperationException(); }
+
+    public NavigableSet<E> descendingSet () { return ascending; }
+
+    public NavigableSet<E> subSet (E from, boolean fromInclusive,
+                                   E to, boolean toInclusive) {
+      return ascending.subSet(to, toInclusive, from, fromInclusive).descendingSet();
+    }
+
+    public NavigableSet<E> headSet (E to, boolean inclusive) {
+      return ascending.tailSet(to, inclusive).descendingSet();
+    }
+
+    public NavigableSet<E> tailSet (E from, boolean inclusive) {
+      return ascending.headSet(from, inclusive).descendingSet();
+    }
+
+    public NavigableSet<E> subSet (E from, E to) { return subSet(from, true, to, false); }
+
+    public NavigableSet<E> headSet (E to) { return headSet(to, false); }
+
+    public NavigableSet<E> tailSet (E from) { return tailSet(from, true); }
+  }
+
+  /***************************************************************************
+   *  Red-black tree insertion.
+   ***************************************************************************/
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean add(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to add() is null");
+    checkLatest(revision);
+
+    if (adaptive) { writes++; adapt(); }
+
+    Node root = findRoot(revision);
+
+    if (root == null) {
+      setRoot(revision, new Node(revision, element, Color.BLACK, 1));
+    } else {
+      // duplicates are detected on the way down, so there is no need to walk
+      // the tree with `contains` first
+      root = add(root, element, revision);
+
+      if (root == null) return false;
+
+      setRoot(revision, root.setColor(revision, Color.BLACK));
+    }
+
+    this.size++;
+
+    return true;
+  }
+
+  // returns the new root of the subtree, or null if the element is already in
+  // the subtree, in which case no set records have been written
+  private Node add(Node h, E element, R revision) {
+    if (h == null) return new Node(revision, element, Color.RED, 1);
+
+    // everything below a shared node is reachable from each of its parents
+    if (h.shared) h.findRevision(revision).shareChildren();
+
+    int cmp = elementComparator.compare(element, h.element);
+
+    if (cmp == 0) return null;
+
+    // resolve the record once per visit rather than once per child access;
+    // it only has to be looked up again after `h` has been rewritten
+    SetRecord record = h.findRevision(revision);
+    Node child;
+
+    if (cmp < 0) {
+      child = add(record.left, element, revision);
+      if (child == null) return null;
+      h = h.setLeft(revision, child);
+    } else {
+      child = add(record.right, element, revision);
+      if (child == null) return null;
+      h = h.setRight(revision, child);
+    }
+
+    record = h.findRevision(revision);
+
+    // fix-up any right-leaning links
+    // if right is red and left is black, rotate left
+    if (isRed(record.right, revision) && !isRed(record.left, revision)) {
+      h = rotateLeft(h, revision);
+      record = h.findRevision(revision);
+      // if left is red and left of left is red, rotate right
+    } if (isRed(record.left, revision) &&
+          isRed(record.left.getLeft(revision), revision)) {
+      h = rotateRight(h, revision);
+      record = h.findRevision(revision);
+      // if left is red and right is red, flip colors
+    } if (isRed(record.left, revision) && isRed(record.right, revision)) {
+      h = flipColors(h, record, revision);
+    }
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Bulk loading.
+   ***************************************************************************/
+
+  /**
+   * Inserts every element of {@code elements}, which must be in ascending
+   * order, into the set.
+   *
+   * If the set is empty at {@code revision}, the tree is built bottom-up in
+   * linear time, with one set record per node; otherwise the elements are
+   * added one at a time. Repeated elements are inserted once.
+   *
+   * @param elements the elements to add to the set, in ascending order
+   * @param revision the tree revision for which to add the elements
+   * @return {@code true} if any element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code elements} is {@code null},
+   *     contains {@code null}, or is not in ascending order, or if {@code
+   *     revision} precedes the latest revision
+   */
+  public boolean addAllSorted(Iterable<? extends E> elements, R revision) {
+    if (elements == null)
+      throw new IllegalArgumentException("argument to addAllSorted() is null");
+
+    return addAllSorted(elements.spliterator(), revision);
+  }
+
+  /**
+   * Inserts every remaining element of {@code elements}, which must be in
+   * ascending order, into the set.
+   *
+   * @param elements the elements to add to the set, in ascending order
+   * @param revision the tree revision for which to add the elements
+   * @return {@code true} if any element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code elements} is {@code null},
+   *     contains {@code null}, or is not in ascending order, or if {@code
+   *     revision} precedes the latest revision
+   * @see #addAllSorted(Iterable, Object)
+   */
+  public boolean addAllSorted(Spliterator<? extends E> elements, R revision) {
+    if (elements == null)
+      throw new IllegalArgumentException("argument to addAllSorted() is null");
+    checkLatest(revision);
+
+    // the shape of the tree depends on how many elements there are, so they
+    // are gathered first
+    long estimate = elements.estimateSize();
+    ArrayList<E> sorted = new ArrayList<E>(
+        (int) Math.min(estimate == Long.MAX_VALUE ? 16 : estimate, 1 << 20));
+
+    elements.forEachRemaining(element -> {
+      if (element == null)
+        throw new IllegalArgumentException("argument to addAllSorted() contains null");
+
+      int last = sorted.size() - 1;
+      int cmp = last < 0 ? 1 : elementComparator.compare(element, sorted.get(last));
+
+      if (cmp < 0)
+        throw new IllegalArgumentException("argument to addAllSorted() is not sorted");
+      if (cmp > 0)
+        sorted.add(element);
+    });
+
+    if (sorted.isEmpty()) return false;
+
+    if (findRoot(revision) != null) {
+      boolean changed = false;
+
+      for (E element : sorted)
+        changed |= add(element, revision);
+
+      return changed;
+    }
+
+    setRoot(revision, build(sorted, revision));
+
+    this.size += sorted.size();
+
+    return true;
+  }
+
+  /**
+   * Inserts and removes many elements at once.
+   *
+   * Removals are applied before insertions, so an element in both ends up
+   * in the set. However large the batch, the tree at {@code revision} is
+   * written once: a batch that is large compared to the tree is merged with
+   * it and the tree rebuilt in linear time, while a small one is applied in
+   * ascending order, so that consecutive changes reuse the set records
+   * written for their common path.
+   *
+   * @param revision the tree revision for which to change the elements
+   * @param adds the elements to add to the set
+   * @param removes the elements to remove from the set
+   * @return {@code true} if the set changed, {@code false} otherwise
+   * @throws IllegalArgumentException if either collection is {@code null} or
+   *     contains {@code null}, or if {@code revision} precedes the latest
+   *     revision
+   */
+  public boolean apply(R revision, Collection<? extends E> adds,
+                       Collection<? extends E> removes) {
+    if (adds == null || removes == null)
+      throw new IllegalArgumentException("argument to apply() is null");
+    checkLatest(revision);
+
+    ArrayList<E> additions = new ArrayList<E>(adds);
+    ArrayList<E> removals = new ArrayList<E>(removes);
+
+    // checked on the copies, since some collections refuse contains(null)
+    if (additions.contains(null) || removals.contains(null))
+      throw new IllegalArgumentException("argument to apply() is null");
+
+    additions.sort(elementComparator);
+    removals.sort(elementComparator);
+
+    Node root = findRoot(revision);
+    int n = size(root, revision);
+    long batch = additions.size() + removals.size();
+
+    // adding or removing an element writes O(log n) set records, and
+    // rebuilding the tree writes n of them
+    if (batch * (32 - Integer.numberOfLeadingZeros(n)) < n) {
+      boolean changed = false;
+
+      // an element that is also added ends up in the set either way
+      for (E element : removals)
+        if (Collections.binarySearch(additions, element, elementComparator) < 0)
+          changed |= remove(element, revision);
+
+      for (E element : additions) changed |= add(element, revision);
+
+      return changed;
+    }
+
+    ArrayList<E> elements = new ArrayList<E>(n);
+    ArrayList<E> merged = new ArrayList<E>(n + additions.size());
+
+    inorder(root, revision, elements);
+
+    int i = 0, j = 0, k = 0;
+    boolean changed = false;
+
+    // merge the tree with the additions, dropping the removals from the tree
+    while (i < elements.size() || k < additions.size()) {
+      int cmp = i == elements.size() ? 1 : k == additions.size() ? -1 :
+        elementComparator.compare(elements.get(i), additions.get(k));
+
+      if (cmp > 0) {
+        E element = additions.get(k++);
+        int last = merged.size() - 1;
+
+        // the element is new unless it repeats the previous addition
+        if (last < 0 || elementComparator.compare(merged.get(last), element) != 0) {
+          merged.add(element);
+          changed = true;
+        }
+        continue;
+      }
+
+      E element = elements.get(i++);
+
+      if (cmp == 0) {
+        merged.add(element);
+        k++;
+        continue;
+      }
+
+      while (j < removals.size() && elementComparator.compare(removals.get(j), element) < 0)
+        j++;
+
+      if (j < removals.size() && elementComparator.compare(removals.get(j), element) == 0)
+        changed = true;
+      else
+        merged.add(element);
+    }
+
+    if (!changed) return false;
+
+    setRoot(revision, build(merged, revision));
+
+    this.size += merged.size() - n;
+
+    return true;
+  }
+
+  // appends the elements of the subtree rooted at x, in order
+  private void inorder(Node x, R revision, List<E> elements) {
+    if (x == null) return;
+
+    SetRecord record = x.findRevision(revision);
+
+    inorder(record.left, revision, elements);
+    elements.add(x.element);
+    inorder(record.right, revision, elements);
+  }
+
+  // builds a balanced tree of the sorted, distinct elements
+  private Node build(List<E> sorted, R revision) {
+    // the largest black height whose smallest tree fits the elements; the
+    // largest tree of that height, all 3-nodes, holds at least as many
+    int n = sorted.size();
+    int height = 31 - Integer.numberOfLeadingZeros(n + 1);
+
+    return build(sorted.iterator(), n, height, revision);
+  }
+
+  // the most elements a 2-3 tree of the given black height holds: 3^h - 1
+  private static long capacity(int height) {
+    long capacity = 1;
+
+    for (int i = 0; i < height; i++) capacity *= 3;
+
+    return capacity - 1;
+  }
+
+  // builds a 2-3 tree, as a left-leaning red-black tree, of the next `n`
+  // elements with every path from the root having `height` black links;
+  // each node is a 2-node unless its children cannot hold the elements
+  private Node build(Iterator<E> elements, int n, int height, R revision) {
+    if (n == 0) return null;
+
+    if (n - 1 <= 2 * capacity(height - 1)) {
+      int leftSize = (n - 1) / 2;
+
+      Node left = build(elements, leftSize, height - 1, revision);
+      Node node = new Node(elements.next());
+      Node right = build(elements, n - 1 - leftSize, height - 1, revision);
+
+      node.setRecords.add(new SetRecord(revision, left, right, Color.BLACK, n));
+
+      return node;
+    }
+
+    // a 3-node: a black node with a red left child
+    int leftSize = (n - 2) / 3;
+    int middleSize = (n - 2 - leftSize) / 2;
+    int rightSize = n - 2 - leftSize - middleSize;
+
+    Node left = build(elements, leftSize, height - 1, revision);
+    Node red = new Node(elements.next());
+    Node middle = build(elements, middleSize, height - 1, revision);
+    Node node = new Node(elements.next());
+    Node right = build(elements, rightSize, height - 1, revision);
+
+    red.setRecords.add(
+        new SetRecord(revision, left, middle, Color.RED, leftSize + middleSize + 1));
+    node.setRecords.add(new SetRecord(revision, red, right, Color.BLACK, n));
+
+    return node;
+  }
+
+  /***************************************************************************
+   *  Red-black tree deletion.
+   ***************************************************************************/
+
+  // useful because this is a left-leaning tree
+  private Node deleteMin(Node h, R revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (h.shared) record.shareChildren();
+
+    if (record.left == null)
+      return null;
+
+    if (!isRed(record.left, revision) &&
+        !isRed(record.left.getLeft(revision), revision)) {
+      h = moveRedLeft(h, revision);
+      record = h.findRevision(revision);
+    }
+
+    h = h.setLeft(revision, deleteMin(record.left, revision));
+    return balance(h, revision);
+  }
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * A remove that misses is not much cheaper than one that hits: the tree is
+   * rebalanced on the way down before the element is known to be missing,
+   * and every change is then undone. Callers that expect many misses should
+   * check {@link #contains} first.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  public boolean remove(E element, R revision) {
+    if (element == null) throw new IllegalArgumentException("argument to remove() is null");
+    checkLatest(revision);
+
+    if (adaptive) { writes++; adapt(); }
+
+    Node root = findRoot(revision);
+
+    if (root == null) return false;
+
+    changes.clear();
+    journaling = true;
+    removed = false;
+
+    try {
+      SetRecord record = root.findRevision(revision);
+
+      // if both children of root are black, set root to red
+      if (!isRed(record.left, revision) && !isRed(record.right, revision))
+        root = root.setColor(revision, Color.RED);
+
+      root = remove(root, element, revision);
+
+      if (!removed) {
+        rollback();
+        return false;
+      }
+    } finally {
+      journaling = false;
+      changes.clear();
+    }
+
+    if (root != null) root = root.setColor(revision, Color.BLACK);
+
+    setRoot(revision, root);
+
+    this.size--;
+
+    return true;
+  }
+
+  // sets `removed` if the element was found; otherwise the returned subtree is
+  // meaningless and the journaled writes must be rolled back
+  private Node remove(Node h, E element, R revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (h.shared) record.shareChildren();
+
+    if (elementComparator.compare(element, h.element) < 0)  {
+
+      // fell off the tree: the element is not in the set
+      if (record.left == null) return h;
+
+      if (!isRed(record.left, revision) &&
+          !isRed(record.left.getLeft(revision), revision)) {
+        h = moveRedLeft(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      Node left = remove(record.left, element, revision);
+
+      if (!removed) return h;
+
+      h = h.setLeft(revision, left);
+
+    } else {
+
+      if (isRed(record.left, revision)) {
+        h = rotateRight(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      if (elementComparator.compare(element, h.element) == 0 && (record.right == null)) {
+        removed = true;
+        h.retired = true;
+        return null;
+      }
+
+      if (record.right == null) return h;
+
+      if (!isRed(record.right, revision) &&
+          !isRed(record.right.getLeft(revision), revision)) {
+        h = moveRedRight(h, revision);
+        record = h.findRevision(revision);
+      }
+
+      // you've found the node you're looking for
+      if (elementComparator.compare(element, h.element) == 0) {
+        removed = true;
+        h.retired = true;
+
+        // right min is the new root
+        Node rightMin = min(record.right, revision),
+             rightSubtree = deleteMin(record.right, revision),
+             leftSubtree = record.left;
+
+        // the successor takes over the position, and so the color, of `h`
+        h = rightMin.update(revision, leftSubtree, rightSubtree, record.color);
       } else {
-        h = h.setRight(revision, remove(h.getRight(revision), element, revision));
+        Node right = remove(record.right, element, revision);
+
+        if (!removed) return h;
+
+        h = h.setRight(revision, right);
       }
     }
     return balance(h, revision);
@@ -482,12 +1844,12 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
   // make a left-leaning link lean to the right
   private Node rotateRight(Node h, R revision) {
-    Node left = h.getLeft(revision);
+    SetRecord record = h.findRevision(revision);
+    Node left = record.left;
+    SetRecord leftRecord = left.findRevision(revision);
 
-    h = h.setLeft(revision, left.getRight(revision));
-    left = left.setRight(revision, h);
-    left.color = left.getRight(revision).color;
-    left.getRight(revision).color = Color.RED;
+    h = h.update(revision, leftRecord.right, record.right, Color.RED);
+    left = left.update(revision, leftRecord.left, h, record.color);
 
     // note that `left` is now the root of the subtree because of the rotation
     return left;
@@ -495,11 +1857,12 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
   // make a right-leaning link lean to the left
   private Node rotateLeft(Node subtree, R revision) {
-    Node right = subtree.getRight(revision);
-    subtree = subtree.setRight(revision, right.getLeft(revision));
-    right = right.setLeft(revision, subtree);
-    right.color = right.getLeft(revision).color;
-    right.getLeft(revision).color = Color.RED;
+    SetRecord record = subtree.findRevision(revision);
+    Node right = record.right;
+    SetRecord rightRecord = right.findRevision(revision);
+
+    subtree = subtree.update(revision, record.left, rightRecord.left, Color.RED);
+    right = right.update(revision, subtree, rightRecord.right, record.color);
 
     // note that `right` is now the root of the subtree because of the rotation
     return right;
@@ -507,12 +1870,19 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
   // flip the colors of a node and its two children
   //
-  // can be void because we don't need to add any set records, so we don't risk
-  // allocating a new node
-  private void flipColors(Node h, R revision) {
-    h.color = flipColor(h.color);
-    h.getLeft(revision).color = flipColor(h.getLeft(revision).color);
-    h.getRight(revision).color = flipColor(h.getRight(revision).color);
+  // colors are part of the set records, so this may allocate new nodes for
+  // `h` and its children and returns the node now in the place of `h`
+  private Node flipColors(Node h, R revision) {
+    return flipColors(h, h.findRevision(revision), revision);
+  }
+
+  private Node flipColors(Node h, SetRecord record, R revision) {
+    Node left = record.left.setColor(revision,
+        flipColor(record.left.findRevision(revision).color));
+    Node right = record.right.setColor(revision,
+        flipColor(record.right.findRevision(revision).color));
+
+    return h.update(revision, left, right, flipColor(record.color));
   }
 
   // find the opposite of the current color
@@ -523,12 +1893,14 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   // Assuming that h is red and both h.getLeft(revision) and h.getLeft(revision).getLeft(revision)
   // are black, make h.getLeft(revision) or one of its children red.
   private Node moveRedLeft(Node h, R revision) {
-    flipColors(h, revision);
+    h = flipColors(h, revision);
 
-    if (isRed(h.getRight(revision).getLeft(revision))) {
-      h = h.setRight(revision, rotateRight(h.getRight(revision), revision));
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.right.getLeft(revision), revision)) {
+      h = h.setRight(revision, rotateRight(record.right, revision));
       h = rotateLeft(h, revision);
-      flipColors(h, revision);
+      h = flipColors(h, revision);
     }
 
     return h;
@@ -537,11 +1909,13 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   // Assuming that h is red and both h.getRight(revision) and h.getRight(revision).getLeft(revision)
   // are black, make h.getRight(revision) or one of its children red.
   private Node moveRedRight(Node h, R revision) {
-    flipColors(h, revision);
+    h = flipColors(h, revision);
+
+    SetRecord record = h.findRevision(revision);
 
-    if (isRed(h.getLeft(revision).getLeft(revision))) {
+    if (isRed(record.left.getLeft(revision), revision)) {
       h = rotateRight(h, revision);
-      flipColors(h, revision);
+      h = flipColors(h, revision);
     }
 
     return h;
@@ -549,14 +1923,21 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
   // restore red-black tree invariant
   private Node balance(Node h, R revision) {
-    if (isRed(h.getRight(revision)))
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.right, revision)) {
       h = rotateLeft(h, revision);
+      record = h.findRevision(revision);
+    }
 
-    if (isRed(h.getLeft(revision)) && isRed(h.getLeft(revision).getLeft(revision)))
+    if (isRed(record.left, revision) &&
+        isRed(record.left.getLeft(revision), revision)) {
       h = rotateRight(h, revision);
+      record = h.findRevision(revision);
+    }
 
-    if (isRed(h.getLeft(revision)) && isRed(h.getRight(revision)))
-      flipColors(h, revision);
+    if (isRed(record.left, revision) && isRed(record.right, revision))
+      h = flipColors(h, record, revision);
 
     return h;
   }
@@ -569,27 +1950,57 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   }
 
   private Node min(Node x, R revision) {
-    return x.getLeft(revision) == null ? x : min(x.getLeft(revision), revision);
+    Node left;
+
+    while ((left = x.getLeft(revision)) != null) x = left;
+
+    return x;
+  }
+
+  private Node max(Node x, R revision) {
+    Node right;
+
+    while ((right = x.getRight(revision)) != null) x = right;
+
+    return x;
   }
 
   private Node findRoot(R revision) {
     if (rootRecords.isEmpty()) return null;
 
+    RootRecord last = rootRecords.get(rootRecords.size() - 1);
+
+    // reads and writes at the newest revision skip the binary search
+    if (revisionComparator.compare(revision, last.revision) >= 0) return last.root;
+
+    if (adaptive) { historicReads++; adapt(); }
+
     int index = rootIndexOf(revision);
 
-    return rootRecords.get(index < 0 ? -index - 1 : index);
+    if (index < 0) index = -index - 2;
+
+    // there was no tree before the first revision
+    return index < 0 ? null : rootRecords.get(index).root;
   }
 
   private void setRoot (R revision, Node node) {
-    // will replace the existing entry at `revision`
-    int rootIndex = rootIndexOf(revision);
-
-    node.revision = revision;
+    // will replace the existing entry at `revision`; revisions are
+    // non-decreasing, so that entry can only be the last one
+    int rootIndex = rootRecords.size() - 1;
 
-    if (rootIndex < 0 || ! rootRecords.get(rootIndex).revision.equals(revision))
-      rootRecords.add(node);
+    if (rootIndex < 0 ||
+        revisionComparator.compare(rootRecords.get(rootIndex).revision, revision) != 0)
+      rootRecords.add(new RootRecord(revision, node));
     else
-      rootRecords.set(rootIndex, node);
+      rootRecords.get(rootIndex).root = node;
+  }
+
+  // writes that make a whole new root must come at or after the latest
+  // revision, or the root record would be out of order
+  private void checkLatest(R revision) {
+    if (!rootRecords.isEmpty() && revisionComparator.compare(revision,
+          rootRecords.get(rootRecords.size() - 1).revision) < 0)
+      throw new IllegalArgumentException("revision precedes the latest revision");
   }
 
   private int rootIndexOf(R revision) {
@@ -599,7 +2010,7 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
 
     while (begin <= end) {
       mid = (begin + end) >> 1;
-      int cmp = revision.compareTo(rootRecords.get(mid).revision);
+      int cmp = revisionComparator.compare(revision, rootRecords.get(mid).revision);
       if (cmp == 0)
         return mid;
       else if (cmp > 0)
@@ -608,7 +2019,589 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
         end = mid - 1;
     }
 
-    return -mid - 1;
+    return -begin - 1;
+  }
+
+  /***************************************************************************
+   *  Set operations.
+   *
+   *  These build their result from new nodes and from subtrees of their
+   *  operands, and never write a set record into an existing node, so that a
+   *  subtree can sit in both an operand and the result. A subtree can only be
+   *  reused at a later revision if none of its nodes has changed since the
+   *  revision it was read at; `share` copies the ones that have. A reused
+   *  subtree is marked shared, so that later writes copy its nodes rather than
+   *  change them under the other trees it belongs to.
+   ***************************************************************************/
+
+  // the three parts of a tree split around an element: the smaller ones, the
+  // element itself if the tree holds it and null otherwise, and the greater
+  private class Split {
+    public Node left, right;
+    // the black heights of left and right
+    public int leftHeight, rightHeight;
+    public E found;
+
+    public Split (Node left, int leftHeight, E found, Node right, int rightHeight) {
+      this.left = left;
+      this.leftHeight = leftHeight;
+      this.found = found;
+      this.right = right;
+      this.rightHeight = rightHeight;
+    }
+  }
+
+  /**
+   * Makes the set at {@code revision} the union of the sets at {@code first}
+   * and {@code second}.
+   *
+   * Takes O(m log(n/m + 1) + c) time for sets of m and n elements, n being
+   * the larger, where c is the number of nodes of the operands that have
+   * changed since their revisions. Those nodes are copied, which can take
+   * O(n) time for an operand from long ago; an operand at the latest
+   * revision has none. The rest of the operands is reused as whole subtrees.
+   * {@code revision} must not precede the latest revision.
+   *
+   * @param first the revision of one operand
+   * @param second the revision of the other operand
+   * @param revision the revision at which to store the result
+   * @return the number of elements in the union
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   */
+  public int union(R first, R second, R revision) {
+    checkLatest(revision);
+
+    Node a = share(findRoot(first), first, revision);
+    Node b = share(findRoot(second), second, revision);
+
+    // splitting the larger tree around each element of the smaller one is
+    // what makes the cost logarithmic in the ratio of their sizes
+    if (size(a, revision) > size(b, revision))
+      return setResult(revision, union(b, a, revision));
+
+    return setResult(revision, union(a, b, revision));
+  }
+
+  /**
+   * Makes the set at {@code revision} the intersection of the sets at
+   * {@code first} and {@code second}.
+   *
+   * Takes O(m log(n/m + 1) + c) time, as a union does.
+   *
+   * @param first the revision of one operand
+   * @param second the revision of the other operand
+   * @param revision the revision at which to store the result
+   * @return the number of elements in the intersection
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   * @see #union(Object, Object, Object)
+   */
+  public int intersection(R first, R second, R revision) {
+    checkLatest(revision);
+
+    Node a = share(findRoot(first), first, revision);
+    Node b = share(findRoot(second), second, revision);
+
+    if (size(a, revision) > size(b, revision))
+      return setResult(revision, intersection(b, a, revision));
+
+    return setResult(revision, intersection(a, b, revision));
+  }
+
+  /**
+   * Makes the set at {@code revision} the elements of the set at {@code
+   * first} that are not in the set at {@code second}.
+   *
+   * Takes O(m log(n/m + 1) + c) time, as a union does.
+   *
+   * @param first the revision of the set to take elements from
+   * @param second the revision of the set of elements to leave out
+   * @param revision the revision at which to store the result
+   * @return the number of elements in the difference
+   * @throws IllegalArgumentException if {@code revision} precedes the latest
+   *     revision
+   * @see #union(Object, Object, Object)
+   */
+  public int difference(R first, R second, R revision) {
+    checkLatest(revision);
+
+    Node a = share(findRoot(first), first, revision);
+    Node b = share(findRoot(second), second, revision);
+
+    return setResult(revision, difference(a, b, revision));
+  }
+
+  /**
+   * Splits the set at {@code revision} around {@code pivot}: the elements
+   * smaller than {@code pivot} are stored at revision {@code lower}, and the
+   * rest at revision {@code upper}.
+   *
+   * Takes O(log n + c) time, where c is the number of nodes of the set that
+   * have changed since {@code revision} and so are copied; the rest of its
+   * subtrees are reused. Neither {@code lower} nor {@code upper} may precede
+   * the latest revision.
+   *
+   * @param pivot the smallest element to store at {@code upper}
+   * @param revision the revision of the set to split
+   * @param lower the revision at which to store the smaller elements
+   * @param upper the revision at which to store the other elements
+   * @return the number of elements smaller than {@code pivot}
+   * @throws IllegalArgumentException if {@code pivot} is {@code null}, if
+   *     {@code upper} does not follow {@code lower}, or if {@code lower}
+   *     precedes the latest revision
+   * @see #union(Object, Object, Object)
+   */
+  public int split(E pivot, R revision, R lower, R upper) {
+    if (pivot == null) throw new IllegalArgumentException("argument to split() is null");
+    if (revisionComparator.compare(lower, upper) >= 0)
+      throw new IllegalArgumentException("upper revision does not follow lower revision");
+    checkLatest(lower);
+
+    Split split = split(share(findRoot(revision), revision, lower), pivot, lower);
+    Node right = split.right;
+
+    if (split.found != null)
+      right = join(null, 0, split.found, right, split.rightHeight, lower);
+
+    int smaller = setResult(lower, split.left);
+
+    setResult(upper, right);
+
+    return smaller;
+  }
+
+  /**
+   * Joins the sets at {@code first} and {@code second}, every element of the
+   * former being smaller than every element of the latter, and stores the
+   * result at {@code revision}.
+   *
+   * Takes O(log n + c) time, where c is the number of nodes of either set
+   * that have changed since its revision and so are copied; the rest of
+   * their subtrees are reused.
+   *
+   * @param first the revision of the set of smaller elements
+   * @param second the revision of the set of greater elements
+   * @param revision the revision at which to store the result
+   * @return the number of elements in the result
+   * @throws IllegalArgumentException if an element of the set at {@code
+   *     first} is not smaller than every element of the set at {@code second},
+   *     or if {@code revision} precedes the latest revision
+   * @see #union(Object, Object, Object)
+   */
+  public int join(R first, R second, R revision) {
+    checkLatest(revision);
+
+    Node a = share(findRoot(first), first, revision);
+    Node b = share(findRoot(second), second, revision);
+
+    if (a != null && b != null &&
+        elementComparator.compare(max(a, revision).element, min(b, revision).element) >= 0)
+      throw new IllegalArgumentException("sets to join overlap");
+
+    return setResult(revision, join(a, b, revision));
+  }
+
+  /**
+   * Removes every element from {@code lo} inclusive to {@code hi} exclusive
+   * from the set.
+   *
+   * Rather than deleting the elements one at a time, the tree is split at
+   * both ends of the range and the outer parts joined, so that this takes
+   * O(log n) time however many elements are removed.
+   *
+   * @param lo the smallest element to remove
+   * @param hi the element above the greatest one to remove
+   * @param revision the revision of the tree from which to delete
+   * @return the number of elements removed
+   * @throws IllegalArgumentException if {@code lo} or {@code hi} is {@code
+   *     null}, if {@code lo} is greater than {@code hi}, or if {@code
+   *     revision} precedes the latest revision
+   */
+  public int removeRange(E lo, E hi, R revision) {
+    if (lo == null || hi == null)
+      throw new IllegalArgumentException("argument to removeRange() is null");
+    if (elementComparator.compare(lo, hi) > 0)
+      throw new IllegalArgumentException("range start is greater than range end");
+    checkLatest(revision);
+
+    Node root = findRoot(revision);
+
+    // leave the tree alone if nothing is in the range
+    if (rank(root, hi, revision) == rank(root, lo, revision)) return 0;
+
+    int n = size(root, revision);
+    Split below = split(share(root, revision, revision), lo, revision);
+    Split above = split(below.right, hi, below.rightHeight, revision);
+    Node right = above.right;
+    int rightHeight = above.rightHeight;
+
+    if (above.found != null) {
+      right = join(null, 0, above.found, right, rightHeight, revision);
+      rightHeight = joinHeight(null, 0, above.right, rightHeight, revision);
+    }
+
+    Node rest = join(below.left, below.leftHeight, right, rightHeight, revision);
+
+    return n - setResult(revision, rest);
+  }
+
+  private int setResult(R revision, Node root) {
+    if (root != null) {
+      root = recolor(root, Color.BLACK, revision);
+      // the root may be a subtree of an operand, still the child of a node
+      root.shared = true;
+    }
+
+    setRoot(revision, root);
+
+    this.size = size(root, revision);
+
+    return this.size;
+  }
+
+  private Node union(Node a, Node b, R revision) {
+    if (a == null) return b;
+    if (b == null) return a;
+
+    SetRecord record = a.findRevision(revision);
+    Split split = split(b, a.element, revision);
+
+    return join(union(record.left, split.left, revision), a.element,
+        union(record.right, split.right, revision), revision);
+  }
+
+  private Node intersection(Node a, Node b, R revision) {
+    if (a == null || b == null) return null;
+
+    SetRecord record = a.findRevision(revision);
+    Split split = split(b, a.element, revision);
+    Node left = intersection(record.left, split.left, revision);
+    Node right = intersection(record.right, split.right, revision);
+
+    return split.found != null ?
+      join(left, a.element, right, revision) : join(left, right, revision);
+  }
+
+  private Node difference(Node a, Node b, R revision) {
+    if (a == null) return null;
+    if (b == null) return a;
+
+    SetRecord record = b.findRevision(revision);
+    Split split = split(a, b.element, revision);
+
+    return join(difference(split.left, record.left, revision),
+        difference(split.right, record.right, revision), revision);
+  }
+
+  // the subtree rooted at x as it was at `from`, made readable at the later
+  // revision `to`: nodes with no set record after `from` are reused, and so
+  // are their subtrees, since a change to a node is recorded in its live
+  // ancestors too; a retired node may have lost its place to one that has
+  private Node share(Node x, R from, R to) {
+    if (x == null) return null;
+
+    SetRecord record = x.findRevision(from);
+
+    if (!x.retired && record == x.setRecords.get(x.setRecords.size() - 1)) return x;
+
+    return newNode(x.element,
+        share(record.left, from, to), share(record.right, from, to), record.color, to);
+  }
+
+  // a node holding a single set record, whose children become shared
+  private Node newNode(E element, Node left, Node right, Color color, R revision) {
+    Node node = new Node(element);
+    SetRecord record = new SetRecord(revision, left, right, color,
+        size(left, revision) + size(right, revision) + 1);
+
+    record.shareChildren();
+    node.setRecords.add(record);
+
+    return node;
+  }
+
+  private Node recolor(Node h, Color color, R revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (record.color == color) return h;
+
+    return newNode(h.element, record.left, record.right, color, revision);
+  }
+
+  // splits the tree rooted at x into the elements smaller and greater than
+  // `element`, in O(log n)
+  private Split split(Node x, E element, R revision) {
+    return split(x, element, blackHeight(x, revision), revision);
+  }
+
+  // splits x, whose black height is given, so that the heights of the
+  // subtrees on the way down follow from their colors instead of each being
+  // measured again, and every join on the way up knows the heights of its
+  // trees: this is what keeps a split to O(log n)
+  private Split split(Node x, E element, int height, R revision) {
+    if (x == null) return new Split(null, 0, null, null, 0);
+
+    SetRecord record = x.findRevision(revision);
+    int childHeight = record.color == Color.RED ? height : height - 1;
+    int cmp = elementComparator.compare(element, x.element);
+
+    if (cmp == 0)
+      return new Split(record.left, childHeight, x.element, record.right, childHeight);
+
+    Split split;
+
+    if (cmp < 0) {
+      split = split(record.left, element, childHeight, revision);
+
+      Node right = split.right;
+      int rightHeight = split.rightHeight;
+
+      split.right = join(right, rightHeight, x.element, record.right, childHeight, revision);
+      split.rightHeight = joinHeight(right, rightHeight, record.right, childHeight, revision);
+    } else {
+      split = split(record.right, element, childHeight, revision);
+
+      Node left = split.left;
+      int leftHeight = split.leftHeight;
+
+      split.left = join(record.left, childHeight, x.element, left, leftHeight, revision);
+      split.leftHeight = joinHeight(record.left, childHeight, left, leftHeight, revision);
+    }
+
+    return split;
+  }
+
+  private Node join(Node left, Node right, R revision) {
+    return join(left, blackHeight(left, revision), right, blackHeight(right, revision),
+                revision);
+  }
+
+  // joins two trees of the given black heights, every element of `left`
+  // being smaller than every element of `right`
+  private Node join(Node left, int leftHeight, Node right, int rightHeight, R revision) {
+    if (left == null) return right;
+    if (right == null) return left;
+
+    E min = min(right, revision).element;
+    Split split = split(right, min, rightHeight, revision);
+
+    return join(left, leftHeight, min, split.right, split.rightHeight, revision);
+  }
+
+  private Node join(Node left, E element, Node right, R revision) {
+    return join(left, blackHeight(left, revision), element,
+                right, blackHeight(right, revision), revision);
+  }
+
+  // joins two trees of the given black heights and an element between them,
+  // in time proportional to the difference of the heights: the smaller tree
+  // is hung, under a red node holding the element, from the side of the
+  // larger one at its own black height, and the tree above it fixed up as
+  // after an insertion. The root is left as the fix-up makes it, red or
+  // black, so that the result has the black height joinHeight gives.
+  private Node join(Node left, int leftHeight, E element, Node right, int rightHeight,
+                    R revision) {
+    // making a red root black adds one to its black height
+    if (isRed(left, revision)) {
+      left = recolor(left, Color.BLACK, revision);
+      leftHeight++;
+    }
+    if (isRed(right, revision)) {
+      right = recolor(right, Color.BLACK, revision);
+      rightHeight++;
+    }
+
+    if (leftHeight > rightHeight)
+      return joinRight(left, leftHeight, element, right, rightHeight, revision);
+    else if (leftHeight < rightHeight)
+      return joinLeft(left, leftHeight, element, right, rightHeight, revision);
+    else
+      return newNode(element, left, right, Color.RED, revision);
+  }
+
+  // the black height of the tree that joining left and right makes
+  private int joinHeight(Node left, int leftHeight, Node right, int rightHeight,
+                         R revision) {
+    if (isRed(left, revision)) leftHeight++;
+    if (isRed(right, revision)) rightHeight++;
+
+    return Math.max(leftHeight, rightHeight);
+  }
+
+  // hangs `right` from the right spine of h, whose links are all black
+  private Node joinRight(Node h, int height, E element, Node right, int rightHeight,
+                         R revision) {
+    if (height == rightHeight)
+      return newNode(element, h, right, Color.RED, revision);
+
+    SetRecord record = h.findRevision(revision);
+    Node child = joinRight(record.right, height - 1, element, right, rightHeight, revision);
+
+    return fixUp(newNode(h.element, record.left, child, record.color, revision), revision);
+  }
+
+  // hangs `left` from the left spine of h, below any red link at its height
+  private Node joinLeft(Node left, int leftHeight, E element, Node h, int height,
+                        R revision) {
+    if (height == leftHeight && !isRed(h, revision))
+      return newNode(element, left, h, Color.RED, revision);
+
+    SetRecord record = h.findRevision(revision);
+    int childHeight = record.color == Color.RED ? height : height - 1;
+    Node child = joinLeft(left, leftHeight, element, record.left, childHeight, revision);
+
+    return fixUp(newNode(h.element, child, record.right, record.color, revision), revision);
+  }
+
+  // number of black nodes on the path from x to its min, x included
+  private int blackHeight(Node x, R revision) {
+    int height = 0;
+
+    for (; x != null; x = x.getLeft(revision))
+      if (!isRed(x, revision)) height++;
+
+    return height;
+  }
+
+  // the insertion fix-up, making new nodes instead of writing set records
+  private Node fixUp(Node h, R revision) {
+    SetRecord record = h.findRevision(revision);
+
+    if (isRed(record.right, revision) && !isRed(record.left, revision)) {
+      // rotate left
+      Node x = record.right;
+      SetRecord right = x.findRevision(revision);
+
+      h = newNode(x.element,
+          newNode(h.element, record.left, right.left, Color.RED, revision),
+          right.right, record.color, revision);
+      record = h.findRevision(revision);
+    }
+
+    if (isRed(record.left, revision) &&
+        isRed(record.left.getLeft(revision), revision)) {
+      // rotate right
+      Node x = record.left;
+      SetRecord left = x.findRevision(revision);
+
+      h = newNode(x.element, left.left,
+          newNode(h.element, left.right, record.right, Color.RED, revision),
+          record.color, revision);
+      record = h.findRevision(revision);
+    }
+
+    if (isRed(record.left, revision) && isRed(record.right, revision)) {
+      // flip colors
+      h = newNode(h.element,
+          recolor(record.left, Color.BLACK, revision),
+          recolor(record.right, Color.BLACK, revision),
+          Color.RED, revision);
+    }
+
+    return h;
+  }
+
+  /***************************************************************************
+   *  Check integrity of red-black tree data structure.
+   ***************************************************************************/
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  public boolean check() {
+    for (RootRecord record : rootRecords)
+      if (!check(record.revision)) return false;
+
+    return true;
+  }
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree: in symmetric order, with consistent subtree sizes, no red
+   * right links or two red links in a row, and the same number of black links
+   * on every path from the root to a null link. A tree that passes has height
+   * at most 2 lg n, so every query at that revision is O(log n).
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   */
+  public boolean check(R revision) {
+    Node root = findRoot(revision);
+
+    return !isRed(root, revision) &&
+      isBST(root, null, null, revision) &&
+      isSizeConsistent(root, revision) &&
+      is23(root, revision) &&
+      isBalanced(root, revision);
+  }
+
+  // is the tree rooted at x a BST with all elements strictly between min and
+  // max (if min or max is null, treat as empty constraint)?
+  private boolean isBST(Node x, E min, E max, R revision) {
+    if (x == null) return true;
+    if (min != null && elementComparator.compare(x.element, min) <= 0) return false;
+    if (max != null && elementComparator.compare(x.element, max) >= 0) return false;
+
+    SetRecord record = x.findRevision(revision);
+
+    return isBST(record.left, min, x.element, revision) &&
+      isBST(record.right, x.element, max, revision);
+  }
+
+  // are the size fields correct?
+  private boolean isSizeConsistent(Node x, R revision) {
+    if (x == null) return true;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (record.size !=
+        size(record.left, revision) + size(record.right, revision) + 1)
+      return false;
+
+    return isSizeConsistent(record.left, revision) &&
+      isSizeConsistent(record.right, revision);
+  }
+
+  // does the tree have no red right links, and at most one (left) red link
+  // in a row on any path?
+  private boolean is23(Node x, R revision) {
+    if (x == null) return true;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (isRed(record.right, revision)) return false;
+    if (record.color == Color.RED && isRed(record.left, revision))
+      return false;
+
+    return is23(record.left, revision) && is23(record.right, revision);
+  }
+
+  // do all paths from root to leaf have same number of black edges?
+  private boolean isBalanced(Node root, R revision) {
+    // number of black links on path from root to min
+    int black = 0;
+
+    for (Node x = root; x != null; x = x.getLeft(revision))
+      if (!isRed(x, revision)) black++;
+
+    return isBalanced(root, black, revision);
+  }
+
+  // does every path from the root to a leaf have the given number of black
+  // links?
+  private boolean isBalanced(Node x, int black, R revision) {
+    if (x == null) return black == 0;
+
+    SetRecord record = x.findRevision(revision);
+
+    if (record.color != Color.RED) black--;
+
+    return isBalanced(record.left, black, revision) &&
+      isBalanced(record.right, black, revision);
   }
 
   /**
@@ -619,9 +2612,9 @@ public class PersistentSet<E extends Comparable<E>, R extends Comparable<R>> {
   public String toString () {
     String str = "";
 
-    for (Node root : rootRecords)
-      str += "revision " + root.revision + ": " +
-        toString(root.revision) + "\n";
+    for (RootRecord record : rootRecords)
+      str += "revision " + record.revision + ": " +
+        toString(record.revision) + "\n";
 
     return str;
   }
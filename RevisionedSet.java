@@ -0,0 +1,202 @@
+import java.util.Comparator;
+
+/**
+ * A sorted set whose every revision stays readable after later revisions
+ * have changed it.
+ *
+ * Every method takes the revision it reads or writes. Revisions are written
+ * in non-decreasing order, and a write before the latest revision is
+ * rejected; reading a revision sees the set as it was after the last write
+ * at or before that revision.
+ *
+ * Sets are created with {@link #create(Storage)}, which picks how the tree
+ * is laid out in memory.
+ *
+ * @author Michael Davis
+ */
+
+public interface RevisionedSet<E, R> {
+
+  /**
+   * The ways a set can lay out its tree in memory.
+   */
+  enum Storage {
+    /**
+     * Each node is an object holding a list of set record objects. See
+     * {@link PersistentSet}.
+     */
+    NODES,
+
+    /**
+     * Nodes and set records are rows in parallel arrays, linked by index. See
+     * {@link ArrayPersistentSet}.
+     */
+    ARRAYS,
+
+    /**
+     * Nodes are immutable, and each write copies the path to the nodes it
+     * changes. See {@link PathCopyingPersistentSet}.
+     */
+    PATH_COPYING
+  }
+
+  /**
+   * Creates an empty set, ordering elements and revisions by their natural
+   * ordering.
+   *
+   * @param storage how to lay out the tree
+   * @return an empty set
+   */
+  static <E extends Comparable<? super E>, R extends Comparable<? super R>>
+      RevisionedSet<E, R> create(Storage storage) {
+    // the same comparator the sets' own constructors use, which sorted views
+    // report as null, the natural ordering
+    return create(storage,
+        PersistentSet.NaturalOrder.INSTANCE, PersistentSet.NaturalOrder.INSTANCE);
+  }
+
+  /**
+   * Creates an empty set, ordering elements and revisions by the given
+   * comparators.
+   *
+   * @param storage how to lay out the tree
+   * @param elementComparator the ordering of the elements
+   * @param revisionComparator the ordering of the revisions
+   * @return an empty set
+   */
+  static <E, R> RevisionedSet<E, R> create(Storage storage,
+                                           Comparator<? super E> elementComparator,
+                                           Comparator<? super R> revisionComparator) {
+    switch (storage) {
+      case ARRAYS:
+        return new ArrayPersistentSet<E, R>(elementComparator, revisionComparator);
+      case PATH_COPYING:
+        return new PathCopyingPersistentSet<E, R>(elementComparator, revisionComparator);
+      default:
+        return new PersistentSet<E, R>(elementComparator, revisionComparator);
+    }
+  }
+
+  /**
+   * Returns the number of elements in the set at a specified revision
+   * @param revision the revision of the tree from which to calculate size
+   * @return the number of elements in the set
+   */
+  int size(R revision);
+
+  /**
+   * Returns the number of elements in the set across all revisions
+   * @return the number of elements in the set
+   */
+  int size();
+
+  /**
+   * Is this set empty?
+   * @param revision the revision of the tree to test for emptiness
+   * @return {@code true} if this set is empty and {@code false} otherwise
+   */
+  boolean isEmpty(R revision);
+
+  /**
+   * Returns the greatest element smaller than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  E predecessor(E element, R revision);
+
+  /**
+   * Returns the smallest element greater than {@code element}.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  E successor(E element, R revision);
+
+  /**
+   * Returns the greatest element not greater than {@code element}: the
+   * element itself if the set contains it, and its predecessor if not.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the greatest element not greater than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  E floor(E element, R revision);
+
+  /**
+   * Returns the smallest element not smaller than {@code element}: the
+   * element itself if the set contains it, and its successor if not.
+   *
+   * @param element the element to search for
+   * @param revision the revision for which to find the element
+   * @return the smallest element not smaller than {@code element}
+   *     and {@code null} if there is none.
+   * @throws IllegalArgumentException if {@code element} is {@code null}
+   */
+  E ceiling(E element, R revision);
+
+  /**
+   * Does this set contain the given element?
+   * @param element the element to search for
+   * @param revision the revision of the tree for which to search the element
+   * @return {@code true} if this set contains {@code element} and
+   *     {@code false} otherwise
+   */
+  boolean contains(E element, R revision);
+
+  /**
+   * Inserts the specified element into the set.
+   *
+   * @param element the element to add to the set
+   * @param revision the tree revision for which to add the element
+   * @return {@code true} if the element was inserted, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  boolean add(E element, R revision);
+
+  /**
+   * Removes the specified element from the set.
+   *
+   * @param element the element to remove from the set
+   * @param revision the revision of the tree from which to delete
+   * @return {@code true} if the element was removed, {@code false} otherwise
+   * @throws IllegalArgumentException if {@code element} is {@code null}, or
+   *     if {@code revision} precedes the latest revision
+   */
+  boolean remove(E element, R revision);
+
+  /**
+   * Checks that the tree is a valid left-leaning red-black tree at every
+   * revision.
+   *
+   * @return {@code true} if every revision is valid, {@code false} otherwise
+   */
+  boolean check();
+
+  /**
+   * Checks that the tree at the specified revision is a valid left-leaning
+   * red-black tree.
+   *
+   * @param revision the revision of the tree to check
+   * @return {@code true} if the tree is valid, {@code false} otherwise
+   */
+  boolean check(R revision);
+
+  /**
+   * Stringifies the set for the specified revision.
+   *
+   * @param revision the revision to stringify
+   * @return a string version of the tree in the recursive form of
+   * (root left-tree right-tree).
+   */
+  String toString(R revision);
+}